@@ -0,0 +1,148 @@
+package trikita.capture;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Frames capture blocks for the compressed capture file. Every block is compressed on its own so a
+// reader can seek to any frame. File layout:
+//   file header:  magic (4), version (2), reserved (2), raw block size (4)
+//   frame header: codec (1), reserved (3), raw length (4), frame data length (4), raw CRC32 (4)
+//   frame data
+// Raw blocks are the pcap byte stream cut on record boundaries. Deflate at the fastest level is
+// used as a pure Java codec, blocks that do not shrink are stored as they are.
+public class BlockCodec {
+
+    public static final int FILE_MAGIC = 0x43505a31; // "CPZ1"
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_LENGTH = 12;
+    public static final int FRAME_HEADER_LENGTH = 16;
+
+    public static final int STORED = 0;
+    public static final int DEFLATE = 1;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater mInflater = new Inflater(true);
+    private final CRC32 mCRC = new CRC32();
+    private byte[] mFrame = new byte[0];
+
+    public static void writeFileHeader(byte[] b, int blockSize) {
+        putInt(b, 0, FILE_MAGIC);
+        b[4] = 0;
+        b[5] = VERSION;
+        b[6] = 0;
+        b[7] = 0;
+        putInt(b, 8, blockSize);
+    }
+
+    // Encodes raw[0, length) as a frame, returns the frame length. The frame is in getFrame().
+    public int encode(byte[] raw, int length) {
+        int capacity = FRAME_HEADER_LENGTH + length + length / 8 + 64;
+        if (mFrame.length < capacity) {
+            mFrame = new byte[capacity];
+        }
+        mDeflater.reset();
+        mDeflater.setInput(raw, 0, length);
+        mDeflater.finish();
+        int n = 0;
+        while (!mDeflater.finished() && n < length) {
+            n += mDeflater.deflate(mFrame, FRAME_HEADER_LENGTH + n, length - n);
+        }
+        int codec = DEFLATE;
+        if (!mDeflater.finished() || n >= length) {
+            System.arraycopy(raw, 0, mFrame, FRAME_HEADER_LENGTH, length);
+            n = length;
+            codec = STORED;
+        }
+        mCRC.reset();
+        mCRC.update(raw, 0, length);
+        mFrame[0] = (byte) codec;
+        mFrame[1] = 0;
+        mFrame[2] = 0;
+        mFrame[3] = 0;
+        putInt(mFrame, 4, length);
+        putInt(mFrame, 8, n);
+        putInt(mFrame, 12, (int) mCRC.getValue());
+        return FRAME_HEADER_LENGTH + n;
+    }
+
+    public byte[] getFrame() { return mFrame; }
+
+    // Frees the native zlib streams, the codec can not be used afterwards
+    public void close() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    // Decodes a frame (header included) from frame[offset...] into raw, returns the raw length.
+    // Header fields are checked against both buffers, a damaged frame fails with an IOException.
+    public int decode(byte[] frame, int offset, byte[] raw) throws IOException {
+        if (offset < 0 || offset > frame.length - FRAME_HEADER_LENGTH) {
+            throw new IOException("truncated frame header");
+        }
+        int codec = frame[offset] & 0xff;
+        int length = getInt(frame, offset + 4);
+        int n = getInt(frame, offset + 8);
+        int crc = getInt(frame, offset + 12);
+        if (length < 0 || length > raw.length) {
+            throw new IOException("invalid block length: " + length);
+        }
+        int data = offset + FRAME_HEADER_LENGTH;
+        if (n < 0 || n > frame.length - data) {
+            throw new IOException("invalid frame data length: " + n);
+        }
+        if (codec == STORED) {
+            if (n != length) {
+                throw new IOException("stored block length mismatch: " + n + " != " + length);
+            }
+            System.arraycopy(frame, data, raw, 0, length);
+        } else if (codec == DEFLATE) {
+            mInflater.reset();
+            mInflater.setInput(frame, data, n);
+            try {
+                int read = 0;
+                while (read < length && !mInflater.finished()) {
+                    int r = mInflater.inflate(raw, read, length - read);
+                    if (r == 0 && mInflater.needsInput()) {
+                        break;
+                    }
+                    read += r;
+                }
+                if (read != length) {
+                    throw new IOException("truncated block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupted block: " + e.getMessage());
+            }
+        } else {
+            throw new IOException("unknown codec: " + codec);
+        }
+        mCRC.reset();
+        mCRC.update(raw, 0, length);
+        if ((int) mCRC.getValue() != crc) {
+            throw new IOException("block checksum mismatch");
+        }
+        return length;
+    }
+
+    public static int frameLength(byte[] header, int offset) {
+        return FRAME_HEADER_LENGTH + getInt(header, offset + 8);
+    }
+
+    public static int rawLength(byte[] header, int offset) {
+        return getInt(header, offset + 4);
+    }
+
+    private static void putInt(byte[] b, int p, int v) {
+        b[p] = (byte) (v >> 24);
+        b[p + 1] = (byte) (v >> 16);
+        b[p + 2] = (byte) (v >> 8);
+        b[p + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+    }
+}
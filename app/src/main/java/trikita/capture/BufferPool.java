@@ -0,0 +1,44 @@
+package trikita.capture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Free list of equally sized packet buffers, owned by the VPN thread (not thread-safe).
+// Every buffer handed out or kept in the free list is accounted in the memory budget.
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final MemoryBudget mBudget;
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>();
+
+    public BufferPool(int bufferSize, int maxPooled, MemoryBudget budget) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+        mBudget = budget;
+    }
+
+    // Returns null if the memory budget does not allow one more buffer
+    public ByteBuffer acquire() {
+        ByteBuffer b = mFree.poll();
+        if (b == null) {
+            if (!mBudget.reserve(mBufferSize)) {
+                return null;
+            }
+            b = ByteBuffer.allocate(mBufferSize);
+        }
+        b.clear();
+        return b;
+    }
+
+    public void release(ByteBuffer b) {
+        if (mFree.size() < mMaxPooled && mBudget.getLevel() == MemoryBudget.LEVEL_NORMAL) {
+            mFree.push(b);
+        } else {
+            mBudget.release(mBufferSize);
+        }
+    }
+
+    public int getBufferSize() { return mBufferSize; }
+    public int getPooledCount() { return mFree.size(); }
+}
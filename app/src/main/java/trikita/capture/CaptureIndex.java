@@ -0,0 +1,204 @@
+package trikita.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Reads a capture through its sidecar index (see CaptureIndexWriter). The index is memory-mapped
+// and searched in place, blocks are mapped from the capture file only when they are read.
+public class CaptureIndex {
+
+    private final RandomAccessFile mCaptureFile;
+    private final FileChannel mCapture;
+    private final MappedByteBuffer mIndex;
+    private final boolean mCompressed;
+
+    // Positions of the block entries and of the flows sections in the index
+    private int[] mBlocks = new int[64];
+    private int mBlockCount;
+    private int[] mFlowSections = new int[8];
+    private int mFlowSectionCount;
+
+    private final BlockCodec mCodec = new BlockCodec();
+    private byte[] mFrame = new byte[0];
+    private byte[] mRaw = new byte[0];
+
+    public CaptureIndex(File capture) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(CaptureIndexWriter.indexFile(capture), "r");
+        try {
+            mIndex = index.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+        } finally {
+            index.close();
+        }
+        if (mIndex.limit() < CaptureIndexWriter.HEADER_LENGTH || mIndex.getInt(0) != CaptureIndexWriter.MAGIC
+                || mIndex.getShort(4) != CaptureIndexWriter.VERSION) {
+            throw new IOException("not a capture index");
+        }
+        readSections();
+
+        mCaptureFile = new RandomAccessFile(capture, "r");
+        mCapture = mCaptureFile.getChannel();
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        mCapture.read(magic, 0);
+        mCompressed = (magic.getInt(0) == BlockCodec.FILE_MAGIC);
+    }
+
+    public void close() throws IOException {
+        mCodec.close();
+        mCaptureFile.close();
+    }
+
+    public int getBlockCount() { return mBlockCount; }
+    public long getBlockStart(int block) { return mIndex.getLong(mBlocks[block] + 16); }
+    public long getBlockEnd(int block) { return mIndex.getLong(mBlocks[block] + 24); }
+    public int getBlockPackets(int block) { return mIndex.getInt(mBlocks[block] + 32); }
+
+    // Stores the blocks that may hold packets in [fromMs, toMs] into out and returns their number.
+    // When out is too small only the first out.length blocks are stored, but all are counted.
+    // Blocks are written in time order, so the first candidate is found by binary search.
+    public int findBlocks(long fromMs, long toMs, int[] out) {
+        int lo = 0;
+        int hi = mBlockCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getBlockEnd(mid) < fromMs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int n = 0;
+        for (int i = lo; i < mBlockCount && getBlockStart(i) <= toMs; i++) {
+            if (getBlockPackets(i) > 0 && getBlockEnd(i) >= fromMs) {
+                if (n < out.length) {
+                    out[n] = i;
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Stores the blocks holding packets of the connection between the two endpoints (either
+    // direction) into out, in file order, and returns their number. As with findBlocks(), a
+    // result larger than out.length means that only the first out.length blocks were stored.
+    public int findFlowBlocks(int addr1, int port1, int addr2, int port2, int proto, int[] out) {
+        if (CaptureIndexWriter.FlowKey.compareEndpoints(addr1, port1, addr2, port2) > 0) {
+            int a = addr1; addr1 = addr2; addr2 = a;
+            int p = port1; port1 = port2; port2 = p;
+        }
+        int n = 0;
+        int last = -1;
+        for (int s = 0; s < mFlowSectionCount; s++) {
+            int section = mFlowSections[s];
+            int e = findFlow(section, addr1, port1, addr2, port2, proto);
+            if (e < 0) {
+                continue;
+            }
+            int flows = mIndex.getInt(section);
+            int postings = section + 8 + flows * CaptureIndexWriter.FLOW_ENTRY_LENGTH;
+            int first = mIndex.getInt(e + 16);
+            int count = mIndex.getInt(e + 20);
+            for (int i = 0; i < count; i++) {
+                int block = mIndex.getInt(postings + (first + i) * 4);
+                // A flow split across two sections may list the same block twice, and blocks
+                // whose entries were not written before a crash are unknown
+                if (block < mBlockCount && block != last) {
+                    if (n < out.length) {
+                        out[n] = block;
+                    }
+                    n++;
+                    last = block;
+                }
+            }
+        }
+        return n;
+    }
+
+    // Returns the position of the flow entry in the flows section, or -1
+    private int findFlow(int section, int addr1, int port1, int addr2, int port2, int proto) {
+        int entries = section + 8;
+        int lo = 0;
+        int hi = mIndex.getInt(section) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int e = entries + mid * CaptureIndexWriter.FLOW_ENTRY_LENGTH;
+            int c = CaptureIndexWriter.FlowKey.compareEndpoints(mIndex.getInt(e), mIndex.getShort(e + 8) & 0xffff,
+                    addr1, port1);
+            if (c == 0) {
+                c = CaptureIndexWriter.FlowKey.compareEndpoints(mIndex.getInt(e + 4), mIndex.getShort(e + 10) & 0xffff,
+                        addr2, port2);
+            }
+            if (c == 0) {
+                int p = mIndex.get(e + 12) & 0xff;
+                c = (p < proto ? -1 : (p == proto ? 0 : 1));
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    // Walks the sections once, a truncated last section is ignored
+    private void readSections() {
+        int p = CaptureIndexWriter.HEADER_LENGTH;
+        int end = mIndex.limit();
+        while (p + CaptureIndexWriter.SECTION_HEADER_LENGTH <= end) {
+            int type = mIndex.getInt(p);
+            int length = mIndex.getInt(p + 4);
+            int payload = p + CaptureIndexWriter.SECTION_HEADER_LENGTH;
+            if (length < 0 || payload + length > end) {
+                break;
+            }
+            if (type == CaptureIndexWriter.SECTION_BLOCKS) {
+                for (int e = payload; e + CaptureIndexWriter.BLOCK_ENTRY_LENGTH <= payload + length;
+                     e += CaptureIndexWriter.BLOCK_ENTRY_LENGTH) {
+                    if (mBlockCount == mBlocks.length) {
+                        mBlocks = Arrays.copyOf(mBlocks, mBlockCount * 2);
+                    }
+                    mBlocks[mBlockCount++] = e;
+                }
+            } else if (type == CaptureIndexWriter.SECTION_FLOWS) {
+                if (mFlowSectionCount == mFlowSections.length) {
+                    mFlowSections = Arrays.copyOf(mFlowSections, mFlowSectionCount * 2);
+                }
+                mFlowSections[mFlowSectionCount++] = payload;
+            }
+            p = payload + length;
+        }
+    }
+
+    // Returns the raw pcap records of the block (the first block starts with the pcap header).
+    // The buffer is reused by the next call.
+    public ByteBuffer readBlock(int block) throws IOException {
+        int e = mBlocks[block];
+        long offset = mIndex.getLong(e);
+        int stored = mIndex.getInt(e + 8);
+        int raw = mIndex.getInt(e + 12);
+        if (stored < 0 || raw < 0) {
+            throw new IOException("corrupted block entry " + block);
+        }
+        MappedByteBuffer data = mCapture.map(FileChannel.MapMode.READ_ONLY, offset, stored);
+        if (!mCompressed) {
+            return data;
+        }
+        if (mFrame.length < stored) {
+            mFrame = new byte[stored];
+        }
+        if (mRaw.length < raw) {
+            mRaw = new byte[raw];
+        }
+        data.get(mFrame, 0, stored);
+        int n = mCodec.decode(mFrame, 0, mRaw);
+        return ByteBuffer.wrap(mRaw, 0, n);
+    }
+}
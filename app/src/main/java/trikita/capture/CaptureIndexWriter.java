@@ -0,0 +1,300 @@
+package trikita.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds the sidecar index of a capture file on the capture writer thread: time range of every
+// block and, for every flow, the list of blocks holding its packets. The index is only appended
+// to, so its cost does not grow with the capture. Layout (big endian):
+//   header:   magic (4), version (2), reserved (2)
+//   sections: type (4), payload length (4), payload
+//   blocks section: block entries in file order, each one file offset (8), stored length (4),
+//             raw length (4), first ms (8), last ms (8), packets (4), reserved (4)
+//   flows section: flow count (4), posting count (4), flow entries sorted by key: addr A (4),
+//             addr B (4), port A (2), port B (2), proto (1), reserved (3), first posting (4),
+//             posting count (4), then the postings: block numbers (4 each)
+// Flows are kept in memory for at most MAX_FLOWS flows and MAX_POSTINGS postings, then written as
+// one more flows section, so a flow may appear in several sections. Flow endpoints are ordered so
+// that both directions of a connection map to the same key. A section cut short by a crash is
+// ignored by the reader.
+public class CaptureIndexWriter {
+
+    public static final int MAGIC = 0x43504931; // "CPI1"
+    public static final int VERSION = 2;
+    public static final int HEADER_LENGTH = 8;
+    public static final int SECTION_HEADER_LENGTH = 8;
+    public static final int SECTION_BLOCKS = 1;
+    public static final int SECTION_FLOWS = 2;
+    public static final int BLOCK_ENTRY_LENGTH = 40;
+    public static final int FLOW_ENTRY_LENGTH = 24;
+
+    private static final int MAX_FLOWS = 8192;
+    private static final int MAX_POSTINGS = 64 * 1024;
+    private static final int MAX_STAGED_BLOCKS = 64;
+    private static final int FLOWS_SECTION_SIZE = SECTION_HEADER_LENGTH + 8 + MAX_FLOWS * FLOW_ENTRY_LENGTH
+            + MAX_POSTINGS * 4;
+    // Rough upper bound of the writer footprint: map entries, posting arrays and the section buffers
+    public static final long MEMORY = FLOWS_SECTION_SIZE + MAX_FLOWS * 128L + MAX_POSTINGS * 8L
+            + MAX_STAGED_BLOCKS * BLOCK_ENTRY_LENGTH;
+
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private final FileOutputStream mOut;
+
+    // Entries of the blocks added since the last blocks section
+    private final ByteBuffer mBlocks = ByteBuffer.allocate(SECTION_HEADER_LENGTH
+            + MAX_STAGED_BLOCKS * BLOCK_ENTRY_LENGTH);
+    private int mStagedBlocks;
+    private int mBlockCount;
+    private long mLastTime;
+
+    private final Map<FlowKey, Postings> mFlows = new HashMap<>();
+    private final FlowKey mLookup = new FlowKey();
+    private int mPostingCount;
+    private ByteBuffer mFlowsSection;
+
+    public CaptureIndexWriter(File file) throws IOException {
+        mOut = new FileOutputStream(file);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) 0);
+        mOut.write(header.array());
+        mBlocks.position(SECTION_HEADER_LENGTH);
+    }
+
+    public static File indexFile(File capture) {
+        return new File(capture.getPath() + ".idx");
+    }
+
+    public int getBlockCount() { return mBlockCount; }
+
+    // Indexes the records of a raw block that is stored at the given file offset. The entry is
+    // written by a later flush(), once the block data is in the capture file.
+    public void addBlock(byte[] raw, int length, long offset, int storedLength) throws IOException {
+        if (mStagedBlocks == MAX_STAGED_BLOCKS) {
+            writeBlocks();
+        }
+        int block = mBlockCount++;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        int packets = 0;
+
+        ByteBuffer b = ByteBuffer.wrap(raw, 0, length);
+        int p = (block == 0 ? PCAP_HEADER_LENGTH : 0);
+        while (p + RECORD_HEADER_LENGTH <= length) {
+            long ms = (b.getInt(p) & 0xffffffffL) * 1000 + (b.getInt(p + 4) & 0xffffffffL) / 1000;
+            int caplen = b.getInt(p + 8);
+            int ip = p + RECORD_HEADER_LENGTH;
+            if (caplen < 0 || ip + caplen > length) {
+                break;
+            }
+            first = Math.min(first, ms);
+            last = Math.max(last, ms);
+            packets++;
+            addPacket(b, ip, caplen, block);
+            p = ip + caplen;
+        }
+        if (packets == 0) {
+            // Keeps block times ordered for the binary search of the reader
+            first = mLastTime;
+            last = mLastTime;
+        }
+        mLastTime = last;
+
+        ByteBuffer e = mBlocks;
+        e.putLong(offset);
+        e.putInt(storedLength);
+        e.putInt(length);
+        e.putLong(first);
+        e.putLong(last);
+        e.putInt(packets);
+        e.putInt(0);
+        mStagedBlocks++;
+    }
+
+    private void addPacket(ByteBuffer b, int ip, int caplen, int block) throws IOException {
+        if (caplen < 20 || (b.get(ip) & 0xf0) != 0x40) {
+            return;
+        }
+        int hl = (b.get(ip) & 0x0f) * 4;
+        int proto = b.get(ip + 9) & 0xff;
+        int src = b.getInt(ip + 12);
+        int dst = b.getInt(ip + 16);
+        int srcPort = 0;
+        int dstPort = 0;
+        boolean first = (b.getShort(ip + 6) & 0x1fff) == 0;
+        if (first && (proto == IPUtils.PROTO_TCP || proto == IPUtils.PROTO_UDP) && caplen >= hl + 4) {
+            srcPort = b.getShort(ip + hl) & 0xffff;
+            dstPort = b.getShort(ip + hl + 2) & 0xffff;
+        }
+        mLookup.set(src, srcPort, dst, dstPort, proto);
+        Postings postings = mFlows.get(mLookup);
+        if (postings == null) {
+            postings = new Postings();
+            mFlows.put(new FlowKey().set(src, srcPort, dst, dstPort, proto), postings);
+        }
+        if (postings.add(block)) {
+            mPostingCount++;
+        }
+        if (mFlows.size() >= MAX_FLOWS || mPostingCount >= MAX_POSTINGS) {
+            writeFlows();
+        }
+    }
+
+    // Appends the staged block entries and the flows seen since the last flows section. Called
+    // after the indexed blocks are written to the capture file.
+    public void flush() throws IOException {
+        writeBlocks();
+        writeFlows();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writeBlocks() throws IOException {
+        if (mStagedBlocks == 0) {
+            return;
+        }
+        ByteBuffer b = mBlocks;
+        b.putInt(0, SECTION_BLOCKS);
+        b.putInt(4, b.position() - SECTION_HEADER_LENGTH);
+        mOut.write(b.array(), 0, b.position());
+        b.clear();
+        b.position(SECTION_HEADER_LENGTH);
+        mStagedBlocks = 0;
+    }
+
+    private void writeFlows() throws IOException {
+        if (mFlows.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<FlowKey, Postings>> flows = new ArrayList<>(mFlows.entrySet());
+        Collections.sort(flows, new Comparator<Map.Entry<FlowKey, Postings>>() {
+            @Override
+            public int compare(Map.Entry<FlowKey, Postings> a, Map.Entry<FlowKey, Postings> b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        if (mFlowsSection == null) {
+            mFlowsSection = ByteBuffer.allocate(FLOWS_SECTION_SIZE);
+        }
+        ByteBuffer out = mFlowsSection;
+        out.clear();
+        out.putInt(SECTION_FLOWS);
+        out.putInt(8 + flows.size() * FLOW_ENTRY_LENGTH + mPostingCount * 4);
+        out.putInt(flows.size());
+        out.putInt(mPostingCount);
+        int posting = 0;
+        for (Map.Entry<FlowKey, Postings> e : flows) {
+            FlowKey k = e.getKey();
+            out.putInt(k.mAddrA);
+            out.putInt(k.mAddrB);
+            out.putShort((short) k.mPortA);
+            out.putShort((short) k.mPortB);
+            out.put((byte) k.mProto);
+            out.put((byte) 0);
+            out.putShort((short) 0);
+            out.putInt(posting);
+            out.putInt(e.getValue().mCount);
+            posting += e.getValue().mCount;
+        }
+        for (Map.Entry<FlowKey, Postings> e : flows) {
+            Postings p = e.getValue();
+            for (int i = 0; i < p.mCount; i++) {
+                out.putInt(p.mBlocks[i]);
+            }
+        }
+        mOut.write(out.array(), 0, out.position());
+        mFlows.clear();
+        mPostingCount = 0;
+    }
+
+    static class FlowKey implements Comparable<FlowKey> {
+        int mAddrA;
+        int mAddrB;
+        int mPortA;
+        int mPortB;
+        int mProto;
+
+        // Orders the endpoints so that A is the lower one (unsigned address, then port)
+        FlowKey set(int src, int srcPort, int dst, int dstPort, int proto) {
+            if (compareEndpoints(src, srcPort, dst, dstPort) <= 0) {
+                mAddrA = src; mPortA = srcPort; mAddrB = dst; mPortB = dstPort;
+            } else {
+                mAddrA = dst; mPortA = dstPort; mAddrB = src; mPortB = srcPort;
+            }
+            mProto = proto;
+            return this;
+        }
+
+        static int compareEndpoints(int addr1, int port1, int addr2, int port2) {
+            long a = ((addr1 & 0xffffffffL) << 16) | port1;
+            long b = ((addr2 & 0xffffffffL) << 16) | port2;
+            return (a < b ? -1 : (a == b ? 0 : 1));
+        }
+
+        @Override
+        public int compareTo(FlowKey k) {
+            int c = compareEndpoints(mAddrA, mPortA, k.mAddrA, k.mPortA);
+            if (c == 0) {
+                c = compareEndpoints(mAddrB, mPortB, k.mAddrB, k.mPortB);
+            }
+            if (c == 0) {
+                c = (mProto < k.mProto ? -1 : (mProto == k.mProto ? 0 : 1));
+            }
+            return c;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+            FlowKey k = (FlowKey) o;
+            return mAddrA == k.mAddrA && mAddrB == k.mAddrB && mPortA == k.mPortA
+                    && mPortB == k.mPortB && mProto == k.mProto;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = mAddrA;
+            h = 31 * h + mAddrB;
+            h = 31 * h + mPortA;
+            h = 31 * h + mPortB;
+            h = 31 * h + mProto;
+            return h;
+        }
+    }
+
+    private static class Postings {
+        int[] mBlocks = new int[2];
+        int mCount;
+
+        boolean add(int block) {
+            if (mCount > 0 && mBlocks[mCount - 1] == block) {
+                return false;
+            }
+            if (mCount == mBlocks.length) {
+                mBlocks = Arrays.copyOf(mBlocks, mCount * 2);
+            }
+            mBlocks[mCount++] = block;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package trikita.capture;
+
+// Decides how much of each packet goes to the capture, before anything is copied:
+//  - snaplen keeps at most the first N bytes of every packet,
+//  - per-flow byte budget keeps the first N payload bytes of a flow, then only headers,
+//  - flow sampling keeps 1 in K flows, chosen by a hash of the 4-tuple.
+// Zero snaplen or budget means unlimited, sample rate 1 keeps all flows.
+public class CapturePolicy {
+
+    public static final CapturePolicy FULL = new CapturePolicy(0, 0, 1);
+
+    private final int mSnapLength;
+    private final long mFlowByteBudget;
+    private final int mSampleRate;
+
+    public CapturePolicy(int snapLength, long flowByteBudget, int sampleRate) {
+        mSnapLength = Math.max(0, snapLength);
+        mFlowByteBudget = Math.max(0, flowByteBudget);
+        mSampleRate = Math.max(1, sampleRate);
+    }
+
+    public int getSnapLength() { return mSnapLength; }
+    public long getFlowByteBudget() { return mFlowByteBudget; }
+    public int getSampleRate() { return mSampleRate; }
+
+    public boolean sample(IPUtils.SocketID id) {
+        if (mSampleRate == 1) {
+            return true;
+        }
+        int h = id.hashCode() * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % mSampleRate == 0;
+    }
+
+    // Returns the number of bytes of the packet to capture (0 to skip it) and charges the payload
+    // part to the flow budget. Packets without a flow (e.g. RST to unknown connections) are kept.
+    public int captureLength(Flow flow, int headerLength, int payloadLength) {
+        int length = headerLength + payloadLength;
+        if (flow != null) {
+            if (!flow.isSampled()) {
+                return 0;
+            }
+            if (mFlowByteBudget > 0) {
+                long left = Math.max(0, mFlowByteBudget - flow.getCapturedPayload());
+                int payload = (int) Math.min(payloadLength, left);
+                flow.addCapturedPayload(payload);
+                length = headerLength + payload;
+            }
+        }
+        if (mSnapLength > 0 && length > mSnapLength) {
+            length = mSnapLength;
+        }
+        return length;
+    }
+}
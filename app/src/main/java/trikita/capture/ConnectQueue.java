@@ -0,0 +1,155 @@
+package trikita.capture;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Upstream TCP connects waiting for their turn. SYNs are queued here and the VPN thread takes a few
+// per select round, so a burst of new connections does not stall forwarding. At most MAX_IN_FLIGHT
+// connects are in progress and MAX_PER_DESTINATION of them to the same address; a queued connect
+// to a busy destination lets the ones behind it go first. Owned by the VPN thread (not thread-safe).
+public class ConnectQueue {
+
+    public static final int MAX_PENDING = 256;
+    public static final int MAX_IN_FLIGHT = 64;
+    public static final int MAX_PER_DESTINATION = 6;
+
+    static final int STATE_NONE = 0;
+    static final int STATE_QUEUED = 1;
+    static final int STATE_CONNECTING = 2;
+
+    private final ArrayDeque<TCB> mPending = new ArrayDeque<>();
+
+    // Connects in flight per destination address, a slot is free when its count is 0
+    private final int[] mDestination = new int[MAX_IN_FLIGHT];
+    private final int[] mDestinationCount = new int[MAX_IN_FLIGHT];
+    private int mInFlight;
+
+    private final Histogram mQueueWait = new Histogram();
+    private final Histogram mConnectTime = new Histogram();
+    private long mConnected;
+    private long mFailed;
+
+    public boolean isFull() {
+        return mPending.size() >= MAX_PENDING;
+    }
+
+    public boolean offer(TCB tcb, long now) {
+        if (isFull()) {
+            return false;
+        }
+        tcb.setConnectState(STATE_QUEUED, now);
+        mPending.add(tcb);
+        return true;
+    }
+
+    // Takes the first queued connect whose destination is below its limit, or returns null
+    public TCB next(long now) {
+        if (mInFlight >= MAX_IN_FLIGHT) {
+            return null;
+        }
+        Iterator<TCB> it = mPending.iterator();
+        while (it.hasNext()) {
+            TCB tcb = it.next();
+            int dst = tcb.getID().dstAddr();
+            int slot = find(dst);
+            if (slot >= 0 && mDestinationCount[slot] >= MAX_PER_DESTINATION) {
+                continue;
+            }
+            if (slot < 0) {
+                slot = find(dst, true);
+                mDestination[slot] = dst;
+            }
+            it.remove();
+            mDestinationCount[slot]++;
+            mInFlight++;
+            mQueueWait.record(now - tcb.getConnectTime());
+            tcb.setConnectState(STATE_CONNECTING, now);
+            return tcb;
+        }
+        return null;
+    }
+
+    public void connected(TCB tcb, long now) {
+        if (tcb.getConnectState() == STATE_CONNECTING) {
+            done(tcb);
+            mConnectTime.record(now - tcb.getConnectTime());
+            mConnected++;
+        }
+    }
+
+    // Drops a connect that is closed before it completed, either queued or in flight
+    public void cancel(TCB tcb) {
+        if (tcb.getConnectState() == STATE_QUEUED) {
+            mPending.remove(tcb);
+            tcb.setConnectState(STATE_NONE, 0);
+        } else if (tcb.getConnectState() == STATE_CONNECTING) {
+            done(tcb);
+            mFailed++;
+        }
+    }
+
+    public int getPendingCount() { return mPending.size(); }
+    public int getInFlightCount() { return mInFlight; }
+    public long getConnected() { return mConnected; }
+    public long getFailed() { return mFailed; }
+    public Histogram getQueueWait() { return mQueueWait; }
+    public Histogram getConnectTime() { return mConnectTime; }
+
+    private void done(TCB tcb) {
+        int slot = find(tcb.getID().dstAddr());
+        if (slot >= 0) {
+            mDestinationCount[slot]--;
+        }
+        mInFlight--;
+        tcb.setConnectState(STATE_NONE, 0);
+    }
+
+    private int find(int dst) {
+        return find(dst, false);
+    }
+
+    private int find(int dst, boolean free) {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (free ? mDestinationCount[i] == 0 : (mDestinationCount[i] > 0 && mDestination[i] == dst)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Power of two millisecond buckets: bucket 0 is below 1 ms, bucket i covers [2^(i-1), 2^i) ms
+    // and the last one everything longer
+    public static class Histogram {
+        public static final int BUCKETS = 16;
+
+        private final long[] mCounts = new long[BUCKETS];
+
+        void record(long ms) {
+            int bucket = (ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms));
+            mCounts[Math.min(bucket, BUCKETS - 1)]++;
+        }
+
+        public long getCount(int bucket) { return mCounts[bucket]; }
+
+        // Upper bound in milliseconds of the bucket holding the given fraction of the samples
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long n : mCounts) {
+                total += n;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (total > 0 && seen >= fraction * total) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "p50<" + percentile(0.5) + "ms p90<" + percentile(0.9) + "ms p99<" + percentile(0.99) + "ms";
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package trikita.capture;
+
+import java.nio.ByteBuffer;
+
+// Bounded IPv4 address to hostname map, filled by passively parsing DNS responses.
+// Set-associative table in parallel arrays: a full set evicts the entry that expires first.
+public class DNSCache {
+
+    public static final int DNS_PORT = 53;
+
+    private static final int WAYS = 4;
+    private static final int HEADER_LENGTH = 12;
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_POINTERS = 16;
+    private static final long MIN_TTL = 30 * 1000;
+    private static final long MAX_TTL = 60 * 60 * 1000;
+
+    private final int mSetMask;
+    private final int[] mAddrs;
+    private final String[] mNames;
+    private final long[] mExpires;
+
+    private final char[] mNameChars = new char[MAX_NAME_LENGTH];
+    private int mNameLength;
+
+    public DNSCache(int capacity) {
+        int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+        mSetMask = sets - 1;
+        mAddrs = new int[sets * WAYS];
+        mNames = new String[sets * WAYS];
+        mExpires = new long[sets * WAYS];
+    }
+
+    public String lookup(int addr, long now) {
+        int base = set(addr);
+        for (int i = base; i < base + WAYS; i++) {
+            if (mAddrs[i] == addr && mNames[i] != null && mExpires[i] > now) {
+                return mNames[i];
+            }
+        }
+        return null;
+    }
+
+    public void put(int addr, String name, long expires) {
+        int base = set(addr);
+        int victim = base;
+        for (int i = base; i < base + WAYS; i++) {
+            if (mNames[i] == null || mAddrs[i] == addr) {
+                victim = i;
+                break;
+            }
+            if (mExpires[i] < mExpires[victim]) {
+                victim = i;
+            }
+        }
+        mAddrs[victim] = addr;
+        mNames[victim] = name;
+        mExpires[victim] = expires;
+    }
+
+    // Parses a DNS response stored in b[offset, offset+length) without moving the buffer position.
+    // A records are cached under the queried name, returns the number of records cached. Every read
+    // is bounds-checked against the message, so malformed responses are ignored without exceptions.
+    public int parseResponse(ByteBuffer b, int offset, int length, long now) {
+        int end = offset + length;
+        if (offset < 0 || length < HEADER_LENGTH || end > b.limit()) {
+            return 0;
+        }
+        int flags = b.getShort(offset + 2) & 0xffff;
+        int qdcount = b.getShort(offset + 4) & 0xffff;
+        int ancount = b.getShort(offset + 6) & 0xffff;
+        // Only successful responses (QR set, RCODE zero) to a single question
+        if ((flags & 0x8000) == 0 || (flags & 0x000f) != 0 || qdcount != 1 || ancount == 0) {
+            return 0;
+        }
+        int p = readName(b, offset, offset + HEADER_LENGTH, end);
+        if (p < 0 || p + 4 > end || mNameLength == 0) {
+            return 0;
+        }
+        p = p + 4; // QTYPE, QCLASS
+        String name = null;
+        int cached = 0;
+        for (int i = 0; i < ancount; i++) {
+            p = skipName(b, p, end);
+            if (p < 0 || p + 10 > end) {
+                break;
+            }
+            int type = b.getShort(p) & 0xffff;
+            int cls = b.getShort(p + 2) & 0xffff;
+            long ttl = (b.getInt(p + 4) & 0xffffffffL) * 1000;
+            int rdlength = b.getShort(p + 8) & 0xffff;
+            p = p + 10;
+            if (p + rdlength > end) {
+                break;
+            }
+            if (type == TYPE_A && cls == CLASS_IN && rdlength == 4) {
+                if (name == null) {
+                    name = new String(mNameChars, 0, mNameLength);
+                }
+                put(b.getInt(p), name, now + Math.min(MAX_TTL, Math.max(MIN_TTL, ttl)));
+                cached++;
+            }
+            p = p + rdlength;
+        }
+        return cached;
+    }
+
+    // Decodes the (possibly compressed) name at p into mNameChars, returns the offset after it or -1
+    private int readName(ByteBuffer b, int msg, int p, int end) {
+        int next = -1;
+        int pointers = 0;
+        mNameLength = 0;
+        while (p < end) {
+            int len = b.get(p) & 0xff;
+            if (len == 0) {
+                return (next < 0 ? p + 1 : next);
+            } else if ((len & 0xc0) == 0xc0) {
+                if (p + 1 >= end || ++pointers > MAX_POINTERS) {
+                    return -1;
+                }
+                if (next < 0) {
+                    next = p + 2;
+                }
+                p = msg + (((len & 0x3f) << 8) | (b.get(p + 1) & 0xff));
+            } else if ((len & 0xc0) != 0 || p + 1 + len > end
+                    || mNameLength + len + 1 > MAX_NAME_LENGTH) {
+                return -1;
+            } else {
+                if (mNameLength > 0) {
+                    mNameChars[mNameLength++] = '.';
+                }
+                for (int i = p + 1; i <= p + len; i++) {
+                    mNameChars[mNameLength++] = Character.toLowerCase((char) (b.get(i) & 0xff));
+                }
+                p = p + 1 + len;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipName(ByteBuffer b, int p, int end) {
+        while (p < end) {
+            int len = b.get(p) & 0xff;
+            if (len == 0) {
+                return p + 1;
+            } else if ((len & 0xc0) == 0xc0) {
+                return p + 2;
+            }
+            p = p + 1 + len;
+        }
+        return -1;
+    }
+
+    private int set(int addr) {
+        int h = addr * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & mSetMask) * WAYS;
+    }
+}
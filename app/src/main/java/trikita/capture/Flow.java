@@ -0,0 +1,45 @@
+package trikita.capture;
+
+// State common to TCP and UDP flows going through the VPN
+public abstract class Flow {
+
+    protected final IPUtils.SocketID mID;
+    private String mHostname;
+    private int mUid = UIDResolver.UID_UNKNOWN;
+    private boolean mSampled = true;
+    private long mCapturedPayload;
+    private int mRecord = -1;
+
+    protected Flow(IPUtils.SocketID id) {
+        mID = id;
+    }
+
+    public IPUtils.SocketID getID() { return mID; }
+    public String getHostname() { return mHostname; }
+    public int getUid() { return mUid; }
+    public boolean isSampled() { return mSampled; }
+    public long getCapturedPayload() { return mCapturedPayload; }
+    // Slot of the flow in the FlowTable, -1 if it has none
+    public int getRecord() { return mRecord; }
+
+    public void setHostname(String hostname) {
+        mHostname = hostname;
+    }
+
+    public void setUid(int uid) {
+        mUid = uid;
+    }
+
+    public void setRecord(int record) {
+        mRecord = record;
+    }
+
+    public void resetCapture(boolean sampled) {
+        mSampled = sampled;
+        mCapturedPayload = 0;
+    }
+
+    public void addCapturedPayload(long n) {
+        mCapturedPayload += n;
+    }
+}
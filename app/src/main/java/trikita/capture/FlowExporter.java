@@ -0,0 +1,368 @@
+package trikita.capture;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Exports flow records as IPFIX (RFC 7011) over UDP. The VPN thread queues finished or timed out
+// flows into preallocated slots; the exporter thread packs them into MTU-sized messages, each one
+// starting with the template set when the template is due for a refresh. A message is sent when it
+// is full, or when no record has been queued for FLUSH_INTERVAL. Every flow becomes two
+// unidirectional records, app to remote and remote to app. If the collector cannot be resolved or
+// reached the exporter turns itself off and later records are not queued.
+public class FlowExporter implements Runnable {
+
+    private static final String TAG = "FlowExporter";
+
+    // IPFIX flowEndReason values
+    public static final int END_IDLE_TIMEOUT = 1;
+    public static final int END_ACTIVE_TIMEOUT = 2;
+    public static final int END_OF_FLOW = 3;
+    public static final int END_FORCED = 4;
+
+    public static final int DEFAULT_PORT = 4739;
+
+    private static final int VERSION = 10;
+    private static final int TEMPLATE_SET_ID = 2;
+    private static final int TEMPLATE_ID = 256;
+    private static final int MESSAGE_HEADER_LENGTH = 16;
+    private static final int SET_HEADER_LENGTH = 4;
+    // Ethernet MTU minus IPv4 and UDP headers
+    private static final int MAX_MESSAGE_LENGTH = 1472;
+    private static final long TEMPLATE_REFRESH = 30 * 1000;
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int QUEUE_SIZE = 1024;
+    // No particular observation domain, as allowed by RFC 7011
+    private static final int OBSERVATION_DOMAIN = 0;
+
+    // Information element ID and length pairs
+    private static final int[] TEMPLATE = {
+            8, 4,    // sourceIPv4Address
+            12, 4,   // destinationIPv4Address
+            7, 2,    // sourceTransportPort
+            11, 2,   // destinationTransportPort
+            4, 1,    // protocolIdentifier
+            1, 8,    // octetDeltaCount
+            2, 8,    // packetDeltaCount
+            152, 8,  // flowStartMilliseconds
+            153, 8,  // flowEndMilliseconds
+            136, 1,  // flowEndReason
+    };
+    private static final int RECORD_LENGTH = 46;
+    private static final int TEMPLATE_SET_LENGTH = SET_HEADER_LENGTH + 4 + TEMPLATE.length * 2;
+    // Records that fill a message without the template set
+    private static final int RECORDS_PER_MESSAGE =
+            (MAX_MESSAGE_LENGTH - MESSAGE_HEADER_LENGTH - SET_HEADER_LENGTH) / RECORD_LENGTH;
+
+    // The export socket must bypass the VPN, VPNThread protects it through the VpnService
+    public interface SocketProtector {
+        void protect(DatagramSocket socket);
+    }
+
+    private final InetSocketAddress mCollector;
+    private final SocketProtector mProtector;
+    private final Thread mThread;
+
+    // Queue of unidirectional records, guarded by mLock
+    private final Object mLock = new Object();
+    private final int[] mSrc = new int[QUEUE_SIZE];
+    private final int[] mDst = new int[QUEUE_SIZE];
+    private final int[] mSrcPort = new int[QUEUE_SIZE];
+    private final int[] mDstPort = new int[QUEUE_SIZE];
+    private final int[] mProto = new int[QUEUE_SIZE];
+    private final long[] mBytes = new long[QUEUE_SIZE];
+    private final long[] mPackets = new long[QUEUE_SIZE];
+    private final long[] mStart = new long[QUEUE_SIZE];
+    private final long[] mEnd = new long[QUEUE_SIZE];
+    private final int[] mReason = new int[QUEUE_SIZE];
+    private int mHead;
+    private int mSize;
+    private long mDropped;
+    private long mExported;
+    private long mLastQueued;
+    private boolean mClosed;
+    private boolean mDisabled;
+
+    private final ByteBuffer mMessage = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+    private int mRecords;
+    private long mSequence;
+    private long mLastTemplate;
+
+    // The collector address may be unresolved, it is resolved on the exporter thread
+    public FlowExporter(InetSocketAddress collector, SocketProtector protector) {
+        mCollector = collector;
+        mProtector = protector;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    public long getDropped() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    // Parses "host" or "host:port", the port defaults to the IPFIX one. Returns an unresolved
+    // address, or null if the port is not valid.
+    public static InetSocketAddress parseCollector(String collector) {
+        int colon = collector.lastIndexOf(':');
+        if (colon < 0) {
+            return InetSocketAddress.createUnresolved(collector, DEFAULT_PORT);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(collector.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (colon == 0 || port <= 0 || port > 0xffff) {
+            return null;
+        }
+        return InetSocketAddress.createUnresolved(collector.substring(0, colon), port);
+    }
+
+    public long getExported() {
+        synchronized (mLock) {
+            return mExported;
+        }
+    }
+
+    // False once the exporter has stopped because the collector is unusable
+    public boolean isEnabled() {
+        synchronized (mLock) {
+            return !mDisabled;
+        }
+    }
+
+    // Called by the VPN thread: queues the traffic of the flow since its last export
+    public void export(FlowTable table, int slot, int reason, long now) {
+        if (slot < 0) {
+            return;
+        }
+        int local = table.getLocalAddr(slot);
+        int remote = table.getRemoteAddr(slot);
+        int localPort = table.getLocalPort(slot);
+        int remotePort = table.getRemotePort(slot);
+        int proto = table.getProto(slot);
+        long start = Math.max(table.getFirst(slot), table.getExportedAt(slot));
+        long end = table.getLast(slot);
+        synchronized (mLock) {
+            if (mDisabled) {
+                return;
+            }
+            enqueue(local, localPort, remote, remotePort, proto, table.getBytesOut(slot) - table.getExportedBytesOut(slot),
+                    table.getPacketsOut(slot) - table.getExportedPacketsOut(slot), start, end, reason);
+            enqueue(remote, remotePort, local, localPort, proto, table.getBytesIn(slot) - table.getExportedBytesIn(slot),
+                    table.getPacketsIn(slot) - table.getExportedPacketsIn(slot), start, end, reason);
+            mLastQueued = System.currentTimeMillis();
+            // Partial messages wait for more records, the exporter thread is woken for full ones
+            if (mSize >= RECORDS_PER_MESSAGE) {
+                mLock.notify();
+            }
+        }
+        table.markExported(slot, now);
+    }
+
+    public static int endReason(int closeReason) {
+        switch (closeReason) {
+            case FlowTable.CLOSE_FIN:
+            case FlowTable.CLOSE_RST:
+                return END_OF_FLOW;
+            case FlowTable.CLOSE_IDLE:
+                return END_IDLE_TIMEOUT;
+            default:
+                return END_FORCED;
+        }
+    }
+
+    // Sends whatever is still queued and stops the exporter thread
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notify();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(int src, int srcPort, int dst, int dstPort, int proto, long bytes, long packets,
+                         long start, long end, int reason) {
+        if (packets == 0) {
+            return;
+        }
+        if (mSize == QUEUE_SIZE) {
+            mDropped++;
+            return;
+        }
+        int i = (mHead + mSize++) % QUEUE_SIZE;
+        mSrc[i] = src;
+        mSrcPort[i] = srcPort;
+        mDst[i] = dst;
+        mDstPort[i] = dstPort;
+        mProto[i] = proto;
+        mBytes[i] = bytes;
+        mPackets[i] = packets;
+        mStart[i] = start;
+        mEnd[i] = end;
+        mReason[i] = reason;
+    }
+
+    @Override
+    public void run() {
+        DatagramChannel socket = null;
+        try {
+            // Resolving the collector may hit the network, so it happens here rather than in the constructor
+            InetSocketAddress collector = new InetSocketAddress(mCollector.getHostString(), mCollector.getPort());
+            if (collector.isUnresolved()) {
+                Log.e(TAG, "unknown flow collector, flow export is disabled: " + mCollector.getHostString());
+                disable();
+                return;
+            }
+            socket = DatagramChannel.open();
+            mProtector.protect(socket.socket());
+            socket.connect(collector);
+            Log.d(TAG, "exporting flows to " + collector);
+            boolean closing = false;
+            while (!closing) {
+                boolean quiet;
+                synchronized (mLock) {
+                    quiet = waitForRecords();
+                    closing = mClosed;
+                }
+                drain(socket);
+                // A partial message goes out only after a quiet period, or when the exporter stops
+                if (mRecords > 0 && (quiet || closing)) {
+                    send(socket);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Also UnresolvedAddressException and friends from connect(), which are unchecked
+            Log.e(TAG, "flow export failed, flow export is disabled", e);
+            disable();
+        } finally {
+            if (socket != null) {
+                try { socket.close(); } catch (IOException ignore) { ignore.printStackTrace(); }
+            }
+        }
+    }
+
+    // Stops queueing, records still in the queue are counted as dropped
+    private void disable() {
+        synchronized (mLock) {
+            mDisabled = true;
+            mDropped += mSize;
+            mSize = 0;
+        }
+    }
+
+    // Waits until a full message is queued, the exporter is closed or the queued records have been
+    // quiet for FLUSH_INTERVAL. Returns true in the last case. Called with mLock held.
+    private boolean waitForRecords() {
+        while (!mClosed && mSize < RECORDS_PER_MESSAGE) {
+            boolean pending = (mSize > 0 || mRecords > 0);
+            long idle = System.currentTimeMillis() - mLastQueued;
+            if (pending && idle >= FLUSH_INTERVAL) {
+                return true;
+            }
+            try {
+                mLock.wait(pending ? FLUSH_INTERVAL - idle : FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                mClosed = true;
+            }
+        }
+        return false;
+    }
+
+    private void drain(DatagramChannel socket) {
+        while (true) {
+            synchronized (mLock) {
+                if (mSize == 0) {
+                    return;
+                }
+                if (mRecords == 0) {
+                    begin(System.currentTimeMillis());
+                }
+                if (mMessage.remaining() >= RECORD_LENGTH) {
+                    putRecord(mHead);
+                    mHead = (mHead + 1) % QUEUE_SIZE;
+                    mSize--;
+                    continue;
+                }
+            }
+            // The message is full, send it outside of the lock
+            send(socket);
+        }
+    }
+
+    // Starts a message: header, template set if due, data set header
+    private void begin(long now) {
+        ByteBuffer b = mMessage;
+        b.clear();
+        b.position(MESSAGE_HEADER_LENGTH);
+        if (now - mLastTemplate >= TEMPLATE_REFRESH) {
+            mLastTemplate = now;
+            b.putShort((short) TEMPLATE_SET_ID);
+            b.putShort((short) TEMPLATE_SET_LENGTH);
+            b.putShort((short) TEMPLATE_ID);
+            b.putShort((short) (TEMPLATE.length / 2));
+            for (int v : TEMPLATE) {
+                b.putShort((short) v);
+            }
+        }
+        b.putShort((short) TEMPLATE_ID);
+        b.putShort((short) 0); // Data set length, filled in by send()
+    }
+
+    private void putRecord(int i) {
+        ByteBuffer b = mMessage;
+        b.putInt(mSrc[i]);
+        b.putInt(mDst[i]);
+        b.putShort((short) mSrcPort[i]);
+        b.putShort((short) mDstPort[i]);
+        b.put((byte) mProto[i]);
+        b.putLong(mBytes[i]);
+        b.putLong(mPackets[i]);
+        b.putLong(mStart[i]);
+        b.putLong(mEnd[i]);
+        b.put((byte) mReason[i]);
+        mRecords++;
+    }
+
+    // A collector that is down must not stop the exporter, the records of a failed message are dropped
+    private void send(DatagramChannel socket) {
+        ByteBuffer b = mMessage;
+        int length = b.position();
+        int dataSet = length - SET_HEADER_LENGTH - mRecords * RECORD_LENGTH;
+        b.putShort(dataSet + 2, (short) (length - dataSet));
+        b.putShort(0, (short) VERSION);
+        b.putShort(2, (short) length);
+        b.putInt(4, (int) (System.currentTimeMillis() / 1000));
+        b.putInt(8, (int) mSequence);
+        b.putInt(12, OBSERVATION_DOMAIN);
+        b.flip();
+        boolean sent = false;
+        try {
+            socket.write(b);
+            sent = true;
+        } catch (IOException e) {
+            Log.d(TAG, "failed to send flow records: " + e.getMessage());
+        }
+        mSequence += mRecords;
+        synchronized (mLock) {
+            if (sent) {
+                mExported += mRecords;
+            } else {
+                mDropped += mRecords;
+            }
+        }
+        mRecords = 0;
+        b.clear();
+    }
+}
@@ -0,0 +1,340 @@
+package trikita.capture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Per-flow traffic records stored column by column in parallel primitive arrays. The VPN thread
+// updates them in place without allocating. Queries run on other threads against a snapshot that
+// the VPN thread copies between two select rounds, when asked to.
+public class FlowTable {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public static final int CLOSE_NONE = 0;
+    public static final int CLOSE_FIN = 1;
+    public static final int CLOSE_RST = 2;
+    public static final int CLOSE_ERROR = 3;
+    public static final int CLOSE_IDLE = 4;
+
+    public static final int GROUP_REMOTE_ADDR = 0;
+    public static final int GROUP_REMOTE_PORT = 1;
+    public static final int GROUP_HOSTNAME = 2;
+
+    private final Columns mLive;
+    private final Columns mSnapshot;
+    private final boolean[] mOpen;
+    // Counters already reported to a flow exporter, VPN thread only and never part of snapshots
+    private final long[] mExportedBytesOut;
+    private final long[] mExportedBytesIn;
+    private final long[] mExportedPacketsOut;
+    private final long[] mExportedPacketsIn;
+    private final long[] mExportedAt;
+    // When the RTT clock started, the flow start unless the connect was issued later
+    private final long[] mRttStart;
+    // Ring of closed slots in the order they were closed, so open() reuses the oldest one
+    private final int[] mFree;
+    private int mFreeHead;
+    private int mFreeCount;
+    private long mDropped;
+
+    private final Object mSnapshotLock = new Object();
+    private volatile boolean mSnapshotRequested;
+
+    public FlowTable(int capacity) {
+        mLive = new Columns(capacity);
+        mSnapshot = new Columns(capacity);
+        mOpen = new boolean[capacity];
+        mExportedBytesOut = new long[capacity];
+        mExportedBytesIn = new long[capacity];
+        mExportedPacketsOut = new long[capacity];
+        mExportedPacketsIn = new long[capacity];
+        mExportedAt = new long[capacity];
+        mRttStart = new long[capacity];
+        mFree = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFree[i] = i;
+        }
+        mFreeCount = capacity;
+    }
+
+    //
+    // VPN thread
+    //
+
+    // Starts a record for the flow, reusing the oldest closed slot. Returns -1 if all slots are open.
+    public int open(Flow flow, int proto, long now) {
+        if (mFreeCount == 0) {
+            mDropped++;
+            return -1;
+        }
+        int slot = mFree[mFreeHead];
+        mFreeHead = (mFreeHead + 1) % mFree.length;
+        mFreeCount--;
+        Columns c = mLive;
+        IPUtils.SocketID id = flow.getID();
+        mOpen[slot] = true;
+        c.mProto[slot] = proto;
+        c.mLocalAddr[slot] = id.srcAddr();
+        c.mLocalPort[slot] = id.srcPort();
+        c.mRemoteAddr[slot] = id.dstAddr();
+        c.mRemotePort[slot] = id.dstPort();
+        c.mUid[slot] = flow.getUid();
+        c.mHostname[slot] = flow.getHostname();
+        c.mBytesOut[slot] = 0;
+        c.mBytesIn[slot] = 0;
+        c.mPacketsOut[slot] = 0;
+        c.mPacketsIn[slot] = 0;
+        c.mFirst[slot] = now;
+        c.mLast[slot] = now;
+        c.mRtt[slot] = -1;
+        c.mCloseReason[slot] = CLOSE_NONE;
+        mExportedBytesOut[slot] = 0;
+        mExportedBytesIn[slot] = 0;
+        mExportedPacketsOut[slot] = 0;
+        mExportedPacketsIn[slot] = 0;
+        mExportedAt[slot] = now;
+        mRttStart[slot] = now;
+        c.mUsed = Math.max(c.mUsed, slot + 1);
+        return slot;
+    }
+
+    public void countOut(int slot, int bytes, long now) {
+        if (slot >= 0) {
+            mLive.mBytesOut[slot] += bytes;
+            mLive.mPacketsOut[slot]++;
+            mLive.mLast[slot] = now;
+        }
+    }
+
+    // TCP flows wait in the connect queue before their connect is issued, that time is not RTT
+    public void startRtt(int slot, long now) {
+        if (slot >= 0) {
+            mRttStart[slot] = now;
+        }
+    }
+
+    // The delay between the first outbound packet (or the connect) and the first inbound one is the RTT estimate
+    public void countIn(int slot, int bytes, long now) {
+        if (slot >= 0) {
+            Columns c = mLive;
+            if (c.mPacketsIn[slot] == 0 && c.mRtt[slot] < 0) {
+                c.mRtt[slot] = (int) (now - mRttStart[slot]);
+            }
+            c.mBytesIn[slot] += bytes;
+            c.mPacketsIn[slot]++;
+            c.mLast[slot] = now;
+        }
+    }
+
+    public void setUid(int slot, int uid) {
+        if (slot >= 0) {
+            mLive.mUid[slot] = uid;
+        }
+    }
+
+    public void setHostname(int slot, String hostname) {
+        if (slot >= 0) {
+            mLive.mHostname[slot] = hostname;
+        }
+    }
+
+    // Remembers what a flow exporter has reported, so that its next report carries only the deltas
+    public void markExported(int slot, long now) {
+        Columns c = mLive;
+        mExportedBytesOut[slot] = c.mBytesOut[slot];
+        mExportedBytesIn[slot] = c.mBytesIn[slot];
+        mExportedPacketsOut[slot] = c.mPacketsOut[slot];
+        mExportedPacketsIn[slot] = c.mPacketsIn[slot];
+        mExportedAt[slot] = now;
+    }
+
+    public void close(int slot, int reason, long now) {
+        if (slot >= 0 && mOpen[slot]) {
+            mOpen[slot] = false;
+            mLive.mCloseReason[slot] = reason;
+            mLive.mLast[slot] = now;
+            mFree[(mFreeHead + mFreeCount) % mFree.length] = slot;
+            mFreeCount++;
+        }
+    }
+
+    public boolean isOpen(int slot) { return slot >= 0 && mOpen[slot]; }
+    public int getProto(int slot) { return mLive.mProto[slot]; }
+    public int getLocalAddr(int slot) { return mLive.mLocalAddr[slot]; }
+    public int getLocalPort(int slot) { return mLive.mLocalPort[slot]; }
+    public int getRemoteAddr(int slot) { return mLive.mRemoteAddr[slot]; }
+    public int getRemotePort(int slot) { return mLive.mRemotePort[slot]; }
+    public int getUid(int slot) { return mLive.mUid[slot]; }
+    public long getBytesOut(int slot) { return mLive.mBytesOut[slot]; }
+    public long getBytesIn(int slot) { return mLive.mBytesIn[slot]; }
+    public long getPacketsOut(int slot) { return mLive.mPacketsOut[slot]; }
+    public long getPacketsIn(int slot) { return mLive.mPacketsIn[slot]; }
+    public long getFirst(int slot) { return mLive.mFirst[slot]; }
+    public long getLast(int slot) { return mLive.mLast[slot]; }
+    public int getRtt(int slot) { return mLive.mRtt[slot]; }
+    public int getCloseReason(int slot) { return mLive.mCloseReason[slot]; }
+    public long getExportedBytesOut(int slot) { return mExportedBytesOut[slot]; }
+    public long getExportedBytesIn(int slot) { return mExportedBytesIn[slot]; }
+    public long getExportedPacketsOut(int slot) { return mExportedPacketsOut[slot]; }
+    public long getExportedPacketsIn(int slot) { return mExportedPacketsIn[slot]; }
+    public long getExportedAt(int slot) { return mExportedAt[slot]; }
+    public long getDropped() { return mDropped; }
+
+    // Copies the records for a pending query, called by the VPN thread once per select round
+    public void publish() {
+        if (!mSnapshotRequested) {
+            return;
+        }
+        mLive.copyTo(mSnapshot);
+        synchronized (mSnapshotLock) {
+            mSnapshotRequested = false;
+            mSnapshotLock.notifyAll();
+        }
+    }
+
+    //
+    // Query threads
+    //
+
+    public static class Talker {
+        public final String key;
+        public long bytes;
+        public long packets;
+        public int flows;
+
+        Talker(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + bytes + " bytes, " + packets + " packets, " + flows + " flows";
+        }
+    }
+
+    // Top n groups by bytes over the flows active at or after sinceMs. Returns null if the VPN thread
+    // did not publish a snapshot within timeoutMs.
+    public synchronized List<Talker> topTalkers(int groupBy, int n, long sinceMs, long timeoutMs)
+            throws InterruptedException {
+        if (!requestSnapshot(timeoutMs)) {
+            return null;
+        }
+        Columns c = mSnapshot;
+        Map<String, Talker> groups = new HashMap<>();
+        for (int i = 0; i < c.mUsed; i++) {
+            if (c.mFirst[i] == 0 || c.mLast[i] < sinceMs) {
+                continue;
+            }
+            String key = groupKey(c, i, groupBy);
+            Talker t = groups.get(key);
+            if (t == null) {
+                t = new Talker(key);
+                groups.put(key, t);
+            }
+            t.bytes += c.mBytesOut[i] + c.mBytesIn[i];
+            t.packets += c.mPacketsOut[i] + c.mPacketsIn[i];
+            t.flows++;
+        }
+        List<Talker> talkers = new ArrayList<>(groups.values());
+        Collections.sort(talkers, new Comparator<Talker>() {
+            @Override
+            public int compare(Talker a, Talker b) {
+                return (a.bytes > b.bytes ? -1 : (a.bytes == b.bytes ? 0 : 1));
+            }
+        });
+        return (talkers.size() > n ? new ArrayList<>(talkers.subList(0, n)) : talkers);
+    }
+
+    private boolean requestSnapshot(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mSnapshotLock) {
+            mSnapshotRequested = true;
+            while (mSnapshotRequested) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    mSnapshotRequested = false;
+                    return false;
+                }
+                mSnapshotLock.wait(left);
+            }
+        }
+        return true;
+    }
+
+    // Flows without a hostname are grouped by their remote address
+    private static String groupKey(Columns c, int i, int groupBy) {
+        switch (groupBy) {
+            case GROUP_REMOTE_PORT:
+                return (c.mProto[i] == IPUtils.PROTO_TCP ? "tcp/" : "udp/") + c.mRemotePort[i];
+            case GROUP_HOSTNAME:
+                return (c.mHostname[i] != null ? c.mHostname[i] : address(c.mRemoteAddr[i]));
+            default:
+                return address(c.mRemoteAddr[i]);
+        }
+    }
+
+    private static String address(int a) {
+        return ((a >>> 24) + "." + ((a >> 16) & 0xff) + "." + ((a >> 8) & 0xff) + "." + (a & 0xff));
+    }
+
+    private static class Columns {
+        final int[] mProto;
+        final int[] mLocalAddr;
+        final int[] mLocalPort;
+        final int[] mRemoteAddr;
+        final int[] mRemotePort;
+        final int[] mUid;
+        final String[] mHostname;
+        final long[] mBytesOut;
+        final long[] mBytesIn;
+        final long[] mPacketsOut;
+        final long[] mPacketsIn;
+        final long[] mFirst;
+        final long[] mLast;
+        final int[] mRtt;
+        final int[] mCloseReason;
+        int mUsed;
+
+        Columns(int capacity) {
+            mProto = new int[capacity];
+            mLocalAddr = new int[capacity];
+            mLocalPort = new int[capacity];
+            mRemoteAddr = new int[capacity];
+            mRemotePort = new int[capacity];
+            mUid = new int[capacity];
+            mHostname = new String[capacity];
+            mBytesOut = new long[capacity];
+            mBytesIn = new long[capacity];
+            mPacketsOut = new long[capacity];
+            mPacketsIn = new long[capacity];
+            mFirst = new long[capacity];
+            mLast = new long[capacity];
+            mRtt = new int[capacity];
+            mCloseReason = new int[capacity];
+        }
+
+        void copyTo(Columns c) {
+            int n = mUsed;
+            System.arraycopy(mProto, 0, c.mProto, 0, n);
+            System.arraycopy(mLocalAddr, 0, c.mLocalAddr, 0, n);
+            System.arraycopy(mLocalPort, 0, c.mLocalPort, 0, n);
+            System.arraycopy(mRemoteAddr, 0, c.mRemoteAddr, 0, n);
+            System.arraycopy(mRemotePort, 0, c.mRemotePort, 0, n);
+            System.arraycopy(mUid, 0, c.mUid, 0, n);
+            System.arraycopy(mHostname, 0, c.mHostname, 0, n);
+            System.arraycopy(mBytesOut, 0, c.mBytesOut, 0, n);
+            System.arraycopy(mBytesIn, 0, c.mBytesIn, 0, n);
+            System.arraycopy(mPacketsOut, 0, c.mPacketsOut, 0, n);
+            System.arraycopy(mPacketsIn, 0, c.mPacketsIn, 0, n);
+            System.arraycopy(mFirst, 0, c.mFirst, 0, n);
+            System.arraycopy(mLast, 0, c.mLast, 0, n);
+            System.arraycopy(mRtt, 0, c.mRtt, 0, n);
+            System.arraycopy(mCloseReason, 0, c.mCloseReason, 0, n);
+            c.mUsed = n;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package trikita.capture;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+// IPv4 fragment reassembly (RFC 815 hole lists). At most MAX_DATAGRAMS datagrams are in progress,
+// each one in a pooled buffer. Overlapping fragments only fill the holes, so data that has already
+// arrived is never overwritten. Owned by the VPN thread (not thread-safe).
+public class IPReassembler {
+
+    private static final String TAG = "IPReassembler";
+
+    private static final int MAX_DATAGRAMS = 8;
+    private static final int MAX_HOLES = 16;
+    private static final long TIMEOUT = 30 * 1000;
+
+    // Payload is stored after the space for the longest IP header
+    private static final int PAYLOAD_BASE = 60;
+    private static final int MAX_PAYLOAD = IPUtils.MAX_DATAGRAM_SIZE - PAYLOAD_BASE;
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+
+    private final BufferPool mPool;
+
+    private final int[] mSrc = new int[MAX_DATAGRAMS];
+    private final int[] mDst = new int[MAX_DATAGRAMS];
+    private final int[] mID = new int[MAX_DATAGRAMS];
+    private final int[] mProto = new int[MAX_DATAGRAMS];
+    private final ByteBuffer[] mBuffers = new ByteBuffer[MAX_DATAGRAMS];
+    private final int[] mHeaderLength = new int[MAX_DATAGRAMS];
+    private final int[] mTotalLength = new int[MAX_DATAGRAMS];
+    private final long[] mDeadline = new long[MAX_DATAGRAMS];
+    private final int[][] mHoleStart = new int[MAX_DATAGRAMS][MAX_HOLES];
+    private final int[][] mHoleEnd = new int[MAX_DATAGRAMS][MAX_HOLES];
+    private final int[] mHoleCount = new int[MAX_DATAGRAMS];
+    private final int[] mScratchStart = new int[MAX_HOLES];
+    private final int[] mScratchEnd = new int[MAX_HOLES];
+    private int mPending;
+
+    private long mReassembled;
+    private long mDropped;
+    private long mTimedOut;
+
+    public IPReassembler(BufferPool pool) {
+        mPool = pool;
+    }
+
+    public static boolean isFragment(IPUtils.IPHeader header) {
+        return (header.flags & IPUtils.IPHeader.FLAG_MF) != 0 || header.fragmentOffset != 0;
+    }
+
+    // Adds the fragment in ip (position at the fragment payload). Returns the reassembled datagram
+    // with position 0 once the last hole is filled, the caller must give it back to the pool.
+    public ByteBuffer offer(ByteBuffer ip, IPUtils.IPHeader header, long now) {
+        expire(now);
+        int src = IPUtils.toInt(header.src);
+        int dst = IPUtils.toInt(header.dst);
+        int length = Math.min(header.length, ip.limit()) - header.headerLength;
+        int start = header.fragmentOffset * 8;
+        int end = start + length;
+        boolean last = (header.flags & IPUtils.IPHeader.FLAG_MF) == 0;
+        if (length <= 0 || end > MAX_PAYLOAD || (!last && length % 8 != 0)) {
+            mDropped++;
+            return null;
+        }
+
+        int slot = find(src, dst, header.id, header.protocol);
+        if (slot < 0 && (slot = allocate(src, dst, header.id, header.protocol, now)) < 0) {
+            mDropped++;
+            return null;
+        }
+
+        int total = mTotalLength[slot];
+        if (end > total || (last && total != UNKNOWN && total != end)) {
+            Log.d(TAG, "inconsistent fragment length, dropping datagram " + header.id);
+            mDropped++;
+            drop(slot);
+            return null;
+        }
+        if (last) {
+            mTotalLength[slot] = total = end;
+        }
+        if (start == 0) {
+            ByteBuffer b = mBuffers[slot];
+            int hl = header.headerLength;
+            for (int i = 0; i < hl; i++) {
+                b.put(PAYLOAD_BASE - hl + i, ip.get(i));
+            }
+            mHeaderLength[slot] = hl;
+        }
+        if (!fill(slot, ip, start, end, total)) {
+            Log.d(TAG, "too many holes, dropping datagram " + header.id);
+            mDropped++;
+            drop(slot);
+            return null;
+        }
+        if (mHoleCount[slot] > 0 || total == UNKNOWN) {
+            return null;
+        }
+        return complete(slot);
+    }
+
+    public boolean hasPending() { return mPending > 0; }
+    public long getReassembled() { return mReassembled; }
+    public long getDropped() { return mDropped; }
+    public long getTimedOut() { return mTimedOut; }
+
+    public void expire(long now) {
+        if (mPending == 0) {
+            return;
+        }
+        for (int i = 0; i < MAX_DATAGRAMS; i++) {
+            if (mBuffers[i] != null && mDeadline[i] <= now) {
+                mTimedOut++;
+                drop(i);
+            }
+        }
+    }
+
+    // Copies the parts of [start, end) that fall into holes and updates the hole list
+    private boolean fill(int slot, ByteBuffer ip, int start, int end, int total) {
+        ByteBuffer b = mBuffers[slot];
+        int[] hs = mHoleStart[slot];
+        int[] he = mHoleEnd[slot];
+        int base = ip.position() - start;
+        int n = 0;
+        for (int i = 0; i < mHoleCount[slot]; i++) {
+            int holeStart = hs[i];
+            int holeEnd = Math.min(he[i], total);
+            if (holeStart >= holeEnd) {
+                continue; // Hole is past the end of the datagram
+            }
+            if (end <= holeStart || start >= holeEnd) {
+                if (n == MAX_HOLES) {
+                    return false;
+                }
+                mScratchStart[n] = holeStart;
+                mScratchEnd[n++] = holeEnd;
+                continue;
+            }
+            int from = Math.max(start, holeStart);
+            int to = Math.min(end, holeEnd);
+            for (int j = from; j < to; j++) {
+                b.put(PAYLOAD_BASE + j, ip.get(base + j));
+            }
+            if (holeStart < from) {
+                if (n == MAX_HOLES) {
+                    return false;
+                }
+                mScratchStart[n] = holeStart;
+                mScratchEnd[n++] = from;
+            }
+            if (to < holeEnd) {
+                if (n == MAX_HOLES) {
+                    return false;
+                }
+                mScratchStart[n] = to;
+                mScratchEnd[n++] = holeEnd;
+            }
+        }
+        System.arraycopy(mScratchStart, 0, hs, 0, n);
+        System.arraycopy(mScratchEnd, 0, he, 0, n);
+        mHoleCount[slot] = n;
+        return true;
+    }
+
+    private ByteBuffer complete(int slot) {
+        ByteBuffer b = mBuffers[slot];
+        int hl = mHeaderLength[slot];
+        int total = mTotalLength[slot];
+        // Move the header and payload together to the start of the buffer
+        byte[] a = b.array();
+        System.arraycopy(a, PAYLOAD_BASE - hl, a, 0, hl + total);
+        b.putShort(2, (short) (hl + total));
+        b.putShort(6, (short) 0); // No more fragments
+        IPUtils.IPHeader.updateChecksum(b, hl);
+        b.position(0);
+        b.limit(hl + total);
+        mBuffers[slot] = null;
+        mPending--;
+        mReassembled++;
+        return b;
+    }
+
+    private int find(int src, int dst, int id, int proto) {
+        for (int i = 0; i < MAX_DATAGRAMS; i++) {
+            if (mBuffers[i] != null && mID[i] == id && mSrc[i] == src && mDst[i] == dst && mProto[i] == proto) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int allocate(int src, int dst, int id, int proto, long now) {
+        int slot = -1;
+        for (int i = 0; i < MAX_DATAGRAMS; i++) {
+            if (mBuffers[i] == null) {
+                slot = i;
+                break;
+            }
+            if (slot < 0 || mDeadline[i] < mDeadline[slot]) {
+                slot = i;
+            }
+        }
+        if (mBuffers[slot] != null) {
+            Log.d(TAG, "reassembly table full, evicting datagram " + mID[slot]);
+            mDropped++;
+            drop(slot);
+        }
+        ByteBuffer b = mPool.acquire();
+        if (b == null) {
+            return -1;
+        }
+        mBuffers[slot] = b;
+        mSrc[slot] = src;
+        mDst[slot] = dst;
+        mID[slot] = id;
+        mProto[slot] = proto;
+        mHeaderLength[slot] = 0;
+        mTotalLength[slot] = UNKNOWN;
+        mDeadline[slot] = now + TIMEOUT;
+        mHoleStart[slot][0] = 0;
+        mHoleEnd[slot][0] = UNKNOWN;
+        mHoleCount[slot] = 1;
+        mPending++;
+        return slot;
+    }
+
+    // Frees the slot, callers count the datagram as dropped or timed out
+    private void drop(int slot) {
+        mPool.release(mBuffers[slot]);
+        mBuffers[slot] = null;
+        mPending--;
+    }
+}
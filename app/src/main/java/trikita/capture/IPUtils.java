@@ -1,7 +1,6 @@
 package trikita.capture;
 
 import android.util.Log;
-import android.util.Pair;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -27,6 +26,10 @@ public final class IPUtils {
         }
     }
 
+    public static int toInt(byte[] addr) {
+        return ((addr[0] & 0xff) << 24) | ((addr[1] & 0xff) << 16) | ((addr[2] & 0xff) << 8) | (addr[3] & 0xff);
+    }
+
     public static String hexdump(String prefix, ByteBuffer b) {
         int pos = b.position();
         StringBuilder sb = new StringBuilder(prefix).append("\n  ");
@@ -51,19 +54,33 @@ public final class IPUtils {
         return sb.append(ascii.toString()).toString();
     }
 
-    public static class SocketID extends Pair<InetSocketAddress, InetSocketAddress> {
-        private SocketID(InetSocketAddress first, InetSocketAddress second) {
-            super(first, second);
+    // IPv4 4-tuple with primitive fields, so that a reused instance can serve as a lookup key.
+    // An ID must not be changed while it is a key in a map.
+    public static class SocketID {
+        private int mSrcAddr;
+        private int mSrcPort;
+        private int mDstAddr;
+        private int mDstPort;
+        private InetSocketAddress mSrc;
+        private InetSocketAddress mDst;
+
+        public SocketID set(int srcAddr, int srcPort, int dstAddr, int dstPort) {
+            mSrcAddr = srcAddr;
+            mSrcPort = srcPort;
+            mDstAddr = dstAddr;
+            mDstPort = dstPort;
+            mSrc = null;
+            mDst = null;
+            return this;
+        }
+        public SocketID set(SocketID id) {
+            return set(id.mSrcAddr, id.mSrcPort, id.mDstAddr, id.mDstPort);
+        }
+        public SocketID set(IPHeader ip, int srcPort, int dstPort) {
+            return set(toInt(ip.src), srcPort, toInt(ip.dst), dstPort);
         }
         public static SocketID fromIP(IPHeader ip, int srcPort, int dstPort) {
-            try {
-                InetSocketAddress src = new InetSocketAddress(InetAddress.getByAddress(ip.src), srcPort);
-                InetSocketAddress dst = new InetSocketAddress(InetAddress.getByAddress(ip.dst), dstPort);
-                return new SocketID(src, dst);
-            } catch (UnknownHostException e) {
-                IPUtils.panic("host expected to be resolvable" + e.getMessage());
-                return null;
-            }
+            return new SocketID().set(ip, srcPort, dstPort);
         }
         public static SocketID fromUDP(IPHeader ip, UDPHeader udp) {
             return fromIP(ip, udp.srcPort, udp.dstPort);
@@ -71,17 +88,56 @@ public final class IPUtils {
         public static SocketID fromTCP(IPHeader ip, TCPHeader tcp) {
             return fromIP(ip, tcp.srcPort, tcp.dstPort);
         }
+        public int srcAddr() { return mSrcAddr; }
+        public int srcPort() { return mSrcPort; }
+        public int dstAddr() { return mDstAddr; }
+        public int dstPort() { return mDstPort; }
         public InetSocketAddress src() {
-            return this.first;
+            if (mSrc == null) {
+                mSrc = toSocketAddress(mSrcAddr, mSrcPort);
+            }
+            return mSrc;
         }
         public InetSocketAddress dst() {
-            return this.second;
+            if (mDst == null) {
+                mDst = toSocketAddress(mDstAddr, mDstPort);
+            }
+            return mDst;
+        }
+
+        private static InetSocketAddress toSocketAddress(int addr, int port) {
+            try {
+                byte[] b = {(byte) (addr >> 24), (byte) (addr >> 16), (byte) (addr >> 8), (byte) addr};
+                return new InetSocketAddress(InetAddress.getByAddress(b), port);
+            } catch (UnknownHostException e) {
+                IPUtils.panic("host expected to be resolvable" + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SocketID)) {
+                return false;
+            }
+            SocketID id = (SocketID) o;
+            return mSrcAddr == id.mSrcAddr && mSrcPort == id.mSrcPort
+                    && mDstAddr == id.mDstAddr && mDstPort == id.mDstPort;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = mSrcAddr;
+            h = 31 * h + mSrcPort;
+            h = 31 * h + mDstAddr;
+            h = 31 * h + mDstPort;
+            return h;
         }
 
         @Override
         public String toString() {
-            return new StringBuilder().append("src=").append(this.first)
-                    .append(", dst = ").append(this.second).toString();
+            return new StringBuilder().append("src=").append(src())
+                    .append(", dst = ").append(dst()).toString();
         }
     }
 
@@ -91,6 +147,8 @@ public final class IPUtils {
         public static final int IP4_VERSION = 4;
         private static final int DEFAULT_TTL = 100;
         private static final short CHECKSUM_OFFSET = 10;
+        public static final int FLAG_MF = 0x1; // More fragments
+        public static final int FLAG_DF = 0x2; // Don't fragment
 
         public int version;
         public int headerLength;
@@ -119,7 +177,7 @@ public final class IPUtils {
             header.length = (ip.getShort() & 0xffff);
             header.id = (ip.getShort() & 0xffff);
             int fragment = (ip.getShort() & 0xffff);
-            header.flags = fragment >> 5;
+            header.flags = fragment >> 13;
             header.fragmentOffset = fragment & (0x1fff);
             header.ttl = (ip.get() & 0xff);
             header.protocol = (ip.get() & 0xff);
@@ -145,10 +203,7 @@ public final class IPUtils {
             return header;
         }
 
-        public static void fill(ByteBuffer ip, InetSocketAddress src, InetSocketAddress dst, int proto, int n) {
-            byte[] srcAddr = src.getAddress().getAddress();
-            byte[] dstAddr = dst.getAddress().getAddress();
-
+        public static void fill(ByteBuffer ip, int srcAddr, int dstAddr, int proto, int n) {
             ip.put((byte) (IP4_VERSION << 4 | (DEFAULT_LENGTH/4)));
             ip.put((byte) 0);            // Type of service
             ip.putShort((short) (DEFAULT_LENGTH + n));  // IP datagram length
@@ -157,20 +212,22 @@ public final class IPUtils {
             ip.put((byte) DEFAULT_TTL);  // non-zero TTL
             ip.put((byte) proto);        // Protocol ID
             ip.putShort((short) 0);      // Checksum
-            if (srcAddr.length == 4 && dstAddr.length == 4) {
-                for (byte b : srcAddr) ip.put(b);
-                for (byte b : dstAddr) ip.put(b);
-            } else {
-                IPUtils.panic("unexpected address length: " + srcAddr.length + " " + dstAddr.length);
-            }
+            ip.putInt(srcAddr);
+            ip.putInt(dstAddr);
             updateChecksum(ip);
         }
 
         private static void updateChecksum(ByteBuffer ip) {
+            updateChecksum(ip, DEFAULT_LENGTH);
+            ip.position(DEFAULT_LENGTH);
+        }
+
+        // Recomputes the checksum of the header at ip[0, headerLength), position is not changed
+        public static void updateChecksum(ByteBuffer ip, int headerLength) {
+            ip.putShort(CHECKSUM_OFFSET, (short) 0);
             int sum = 0;
-            ip.position(0);
-            for (int i = DEFAULT_LENGTH; i > 0; i -= 2) {
-                sum += (ip.getShort() & 0xffff);
+            for (int i = 0; i < headerLength; i += 2) {
+                sum += (ip.getShort(i) & 0xffff);
             }
             while ((sum >> 16) > 0) {
                 sum = (sum & 0xffff) + (sum >> 16);
@@ -213,9 +270,9 @@ public final class IPUtils {
             return header;
         }
 
-        public static void fill(ByteBuffer udp, InetSocketAddress src, InetSocketAddress dst, int n) {
-            udp.putShort((short) src.getPort());
-            udp.putShort((short) dst.getPort());
+        public static void fill(ByteBuffer udp, int srcPort, int dstPort, int n) {
+            udp.putShort((short) srcPort);
+            udp.putShort((short) dstPort);
             udp.putShort((short) (DEFAULT_LENGTH + n));
             // Checksum can be zero according to the RFC
             udp.putShort((short) 0);
@@ -271,32 +328,29 @@ public final class IPUtils {
             return header;
         }
 
-        public static void fill(ByteBuffer tcp, InetSocketAddress src, InetSocketAddress dst, int seq, int ack, int flags, int n) {
+        public static void fill(ByteBuffer tcp, int srcAddr, int srcPort, int dstAddr, int dstPort,
+                                int seq, int ack, int flags, int window, int n) {
             int position = tcp.position();
-            tcp.putShort((short) src.getPort());
-            tcp.putShort((short) dst.getPort());
+            tcp.putShort((short) srcPort);
+            tcp.putShort((short) dstPort);
             tcp.putInt(seq);
             tcp.putInt(ack);
             tcp.put((byte) ((DEFAULT_LENGTH/4) << 4));
             tcp.put((byte) flags);
-            tcp.putShort((short) 0xffff); // TODO: window size
+            tcp.putShort((short) window);
             tcp.putShort((short) 0); // Clear checksum
             tcp.putShort((short) 0); // No urgent pointer
             tcp.position(position);
-            updateChecksum(tcp, src, dst, n);
+            updateChecksum(tcp, srcAddr, dstAddr, n);
         }
 
-        private static void updateChecksum(ByteBuffer tcp, InetSocketAddress src, InetSocketAddress dst, int n) {
+        private static void updateChecksum(ByteBuffer tcp, int srcAddr, int dstAddr, int n) {
             int sum = 0;
             int pos = tcp.position();
-            byte[] srcAddr = src.getAddress().getAddress();
-            byte[] dstAddr = dst.getAddress().getAddress();
 
             // Calculate pseudo-header checksum
-            sum = (((srcAddr[0] & 0xff) << 8) | (srcAddr[1] & 0xff)) +
-                    (((srcAddr[2] & 0xff) << 8) | (srcAddr[3] & 0xff)) +
-                    (((dstAddr[0] & 0xff) << 8) | (dstAddr[1] & 0xff)) +
-                    (((dstAddr[2] & 0xff) << 8) | (dstAddr[3] & 0xff)) +
+            sum = (srcAddr >>> 16) + (srcAddr & 0xffff) +
+                    (dstAddr >>> 16) + (dstAddr & 0xffff) +
                     PROTO_TCP + DEFAULT_LENGTH + n;
 
             // Calculate TCP segment checksum
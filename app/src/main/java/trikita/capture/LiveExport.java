@@ -0,0 +1,321 @@
+package trikita.capture;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+// Streams captured packets as pcapng to local TCP clients, e.g. Wireshark through
+// "adb forward tcp:PORT tcp:PORT" and "nc localhost PORT | wireshark -k -i -".
+// The VPN thread encodes each packet once and copies it into the bounded queue of every client;
+// a separate thread with its own selector accepts clients and writes the queues out. A client that
+// cannot keep up either loses its oldest packets or gets disconnected, the VPN thread never waits.
+// The queues are capture data in the memory budget, a client is refused when it does not fit.
+public class LiveExport implements Runnable {
+
+    private static final String TAG = "LiveExport";
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_DISCONNECT = 1;
+
+    private static final int MAX_CLIENTS = 4;
+    private static final int QUEUE_SIZE = 1024 * 1024;
+    private static final int WRITE_CHUNK = 64 * 1024;
+
+    private static final int LINKTYPE_RAW = 101;
+    private static final int BLOCK_SHB = 0x0a0d0d0a;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_EPB = 0x00000006;
+    private static final int EPB_OVERHEAD = 32;
+    private static final int PENDING_SIZE = WRITE_CHUNK + EPB_OVERHEAD + IPUtils.MAX_DATAGRAM_SIZE;
+    private static final int CLIENT_SIZE = QUEUE_SIZE + PENDING_SIZE;
+
+    private final int mPort;
+    private final int mPolicy;
+    private final MemoryBudget mBudget;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final Thread mThread;
+
+    // Replaced as a whole when clients come and go, so the VPN thread iterates it without locking
+    private volatile Client[] mClients = new Client[0];
+
+    private final ByteBuffer mRecord = ByteBuffer.allocate(EPB_OVERHEAD + IPUtils.MAX_DATAGRAM_SIZE + 3)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private long mDropped;
+
+    public LiveExport(int port, int policy, MemoryBudget budget) throws IOException {
+        mPort = port;
+        mPolicy = policy;
+        mBudget = budget;
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    public boolean hasClients() {
+        return mClients.length > 0;
+    }
+
+    // Packets dropped for all clients, including the ones dropped from full queues
+    public long getDropped() {
+        long dropped = mDropped;
+        for (Client c : mClients) {
+            dropped += c.mDroppedOldest;
+        }
+        return dropped;
+    }
+
+    // Called by the VPN thread: queues the first length bytes of the IP packet at ip[offset]
+    public void offer(ByteBuffer ip, int offset, int length, int originalLength, long now) {
+        int padded = (length + 3) & ~3;
+        ByteBuffer r = mRecord;
+        r.clear();
+        long usec = now * 1000;
+        r.putInt(BLOCK_EPB);
+        r.putInt(EPB_OVERHEAD + padded);
+        r.putInt(0); // Interface ID
+        r.putInt((int) (usec >>> 32));
+        r.putInt((int) usec);
+        r.putInt(length);
+        r.putInt(originalLength);
+        if (ip.hasArray()) {
+            r.put(ip.array(), ip.arrayOffset() + offset, length);
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                r.put(ip.get(i));
+            }
+        }
+        for (int i = length; i < padded; i++) {
+            r.put((byte) 0);
+        }
+        r.putInt(EPB_OVERHEAD + padded);
+        boolean wakeup = false;
+        for (Client c : mClients) {
+            int result = c.enqueue(r.array(), r.position(), mPolicy);
+            if (result == Client.DROPPED) {
+                mDropped++;
+            }
+            wakeup = wakeup || result == Client.WAS_EMPTY;
+        }
+        if (wakeup) {
+            mSelector.wakeup();
+        }
+    }
+
+    public void close() {
+        mThread.interrupt();
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "live export listening on port " + mPort);
+        try {
+            while (!Thread.interrupted()) {
+                for (Client c : mClients) {
+                    if (c.mOverflowed) {
+                        Log.d(TAG, "disconnecting slow consumer");
+                        removeClient(c);
+                    } else if (c.mKey.isValid()) {
+                        c.mKey.interestOps(c.hasPending() ? SelectionKey.OP_WRITE : 0);
+                    }
+                }
+                mSelector.select(100);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    if (!k.isValid()) {
+                        continue;
+                    }
+                    if (k.isAcceptable()) {
+                        accept();
+                    } else if (k.isWritable()) {
+                        Client c = (Client) k.attachment();
+                        try {
+                            c.write();
+                        } catch (IOException e) {
+                            Log.d(TAG, "client gone: " + e.getMessage());
+                            removeClient(c);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "live export failed", e);
+        } finally {
+            for (Client c : mClients) {
+                removeClient(c);
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = mServer.accept();
+        if (socket == null) {
+            return;
+        }
+        if (mClients.length >= MAX_CLIENTS) {
+            Log.d(TAG, "too many clients, refusing " + socket);
+            socket.close();
+            return;
+        }
+        if (!mBudget.reserveLowPriority(CLIENT_SIZE)) {
+            Log.d(TAG, "no memory for a client queue, refusing " + socket);
+            socket.close();
+            return;
+        }
+        socket.configureBlocking(false);
+        Client c = new Client(socket);
+        c.mKey = socket.register(mSelector, SelectionKey.OP_WRITE, c);
+        Client[] clients = new Client[mClients.length + 1];
+        System.arraycopy(mClients, 0, clients, 0, mClients.length);
+        clients[mClients.length] = c;
+        mClients = clients;
+        Log.d(TAG, "client connected: " + socket);
+    }
+
+    private void removeClient(Client c) {
+        Client[] clients = mClients;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == c) {
+                Client[] rest = new Client[clients.length - 1];
+                System.arraycopy(clients, 0, rest, 0, i);
+                System.arraycopy(clients, i + 1, rest, i, clients.length - i - 1);
+                mClients = rest;
+                mBudget.release(CLIENT_SIZE);
+                break;
+            }
+        }
+        try {
+            c.mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Section header and interface description, sent to every client before any packet
+    private static void putHeader(ByteBuffer b) {
+        b.putInt(BLOCK_SHB);
+        b.putInt(28);
+        b.putInt(0x1a2b3c4d); // Byte order magic
+        b.putShort((short) 1);
+        b.putShort((short) 0);
+        b.putLong(-1);        // Section length not specified
+        b.putInt(28);
+        b.putInt(BLOCK_IDB);
+        b.putInt(20);
+        b.putShort((short) LINKTYPE_RAW);
+        b.putShort((short) 0);
+        b.putInt(IPUtils.MAX_DATAGRAM_SIZE);
+        b.putInt(20);
+    }
+
+    private static class Client {
+        static final int QUEUED = 0;
+        static final int WAS_EMPTY = 1;
+        static final int DROPPED = 2;
+
+        final SocketChannel mSocket;
+        SelectionKey mKey;
+        volatile boolean mOverflowed;
+        volatile long mDroppedOldest;
+
+        // Ring of whole pcapng blocks, guarded by this
+        private final byte[] mRing = new byte[QUEUE_SIZE];
+        private int mHead;
+        private int mSize;
+
+        // Bytes taken from the ring but not yet written, used by the export thread only
+        private final ByteBuffer mPending = ByteBuffer.allocate(PENDING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Client(SocketChannel socket) {
+            mSocket = socket;
+            putHeader(mPending);
+            mPending.flip();
+        }
+
+        synchronized int enqueue(byte[] block, int length, int policy) {
+            if (mOverflowed) {
+                return DROPPED;
+            }
+            while (QUEUE_SIZE - mSize < length) {
+                if (policy == POLICY_DISCONNECT || mSize == 0) {
+                    mOverflowed = true;
+                    return DROPPED;
+                }
+                // Drop the oldest block, its total length is at offset 4
+                int oldest = readInt(mHead + 4);
+                mHead = (mHead + oldest) % QUEUE_SIZE;
+                mSize -= oldest;
+                mDroppedOldest++;
+            }
+            boolean empty = (mSize == 0);
+            int tail = (mHead + mSize) % QUEUE_SIZE;
+            int first = Math.min(length, QUEUE_SIZE - tail);
+            System.arraycopy(block, 0, mRing, tail, first);
+            System.arraycopy(block, first, mRing, 0, length - first);
+            mSize += length;
+            return (empty ? WAS_EMPTY : QUEUED);
+        }
+
+        synchronized boolean hasPending() {
+            return mSize > 0 || mPending.hasRemaining();
+        }
+
+        // Takes whole blocks from the ring into the pending buffer and writes as much as possible
+        void write() throws IOException {
+            if (!mPending.hasRemaining()) {
+                mPending.clear();
+                synchronized (this) {
+                    while (mSize > 0) {
+                        int length = readInt(mHead + 4);
+                        if (mPending.position() > 0 && mPending.position() + length > WRITE_CHUNK) {
+                            break;
+                        }
+                        int first = Math.min(length, QUEUE_SIZE - mHead);
+                        mPending.put(mRing, mHead, first);
+                        mPending.put(mRing, 0, length - first);
+                        mHead = (mHead + length) % QUEUE_SIZE;
+                        mSize -= length;
+                    }
+                }
+                mPending.flip();
+            }
+            mSocket.write(mPending);
+        }
+
+        // Little endian int at a ring position, may wrap around
+        private int readInt(int p) {
+            int v = 0;
+            for (int i = 3; i >= 0; i--) {
+                v = (v << 8) | (mRing[(p + i) % QUEUE_SIZE] & 0xff);
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package trikita.capture;
+
+import android.util.Log;
+
+// Global byte budget shared by all buffered flow data (packet buffers, per-connection buffers,
+// capture staging). Above the high watermark the pressure level rises step by step, it goes back
+// to normal only after usage falls below the low watermark.
+public class MemoryBudget {
+
+    private static final String TAG = "MemoryBudget";
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_SHRINK_WINDOW = 1;
+    public static final int LEVEL_DEFER_SYN = 2;
+    public static final int LEVEL_DROP_CAPTURE = 3;
+
+    public static final long DEFAULT_LIMIT = 16 * 1024 * 1024;
+
+    private final long mLimit;
+    private final long mHighWatermark;
+    private final long mLowWatermark;
+
+    private long mUsed;
+    private long mPeak;
+    private long mRejected;
+    private long mRejectedBytes;
+    private long mLevelChanges;
+    private volatile int mLevel = LEVEL_NORMAL;
+
+    public MemoryBudget(long limit) {
+        this(limit, limit * 3 / 4, limit / 2);
+    }
+
+    public MemoryBudget(long limit, long highWatermark, long lowWatermark) {
+        if (lowWatermark > highWatermark || highWatermark > limit) {
+            throw new IllegalArgumentException("expected low <= high <= limit");
+        }
+        mLimit = limit;
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+    }
+
+    // Reserves n bytes for data the engine cannot do without (forwarded packets, connection state)
+    public synchronized boolean reserve(long n) {
+        if (mUsed + n > mLimit) {
+            reject(n);
+            return false;
+        }
+        add(n);
+        return true;
+    }
+
+    // Reserves n bytes for data that can be dropped under pressure (capture staging). It is refused
+    // only at LEVEL_DROP_CAPTURE, after the window has shrunk and SYNs are deferred.
+    public synchronized boolean reserveLowPriority(long n) {
+        if (mLevel >= LEVEL_DROP_CAPTURE || mUsed + n > mLimit) {
+            reject(n);
+            return false;
+        }
+        add(n);
+        return true;
+    }
+
+    public synchronized void release(long n) {
+        mUsed = Math.max(0, mUsed - n);
+        if (mLevel != LEVEL_NORMAL && mUsed < mLowWatermark) {
+            setLevel(LEVEL_NORMAL);
+        }
+    }
+
+    public int getLevel() { return mLevel; }
+    public long getLimit() { return mLimit; }
+    public synchronized long getUsed() { return mUsed; }
+    public synchronized long getPeak() { return mPeak; }
+    public synchronized long getRejected() { return mRejected; }
+    public synchronized long getRejectedBytes() { return mRejectedBytes; }
+    public synchronized long getLevelChanges() { return mLevelChanges; }
+
+    private void add(long n) {
+        mUsed += n;
+        mPeak = Math.max(mPeak, mUsed);
+        if (mUsed >= mHighWatermark) {
+            // Split the range between high watermark and the limit into one band per level
+            long band = Math.max(1, (mLimit - mHighWatermark) / LEVEL_DROP_CAPTURE);
+            int level = (int) Math.min(LEVEL_DROP_CAPTURE, LEVEL_SHRINK_WINDOW + (mUsed - mHighWatermark) / band);
+            if (level > mLevel) {
+                setLevel(level);
+            }
+        }
+    }
+
+    private void reject(long n) {
+        mRejected++;
+        mRejectedBytes += n;
+    }
+
+    private void setLevel(int level) {
+        Log.d(TAG, "pressure level " + mLevel + " -> " + level + ", used " + mUsed + " of " + mLimit);
+        mLevel = level;
+        mLevelChanges++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder("MemoryBudget{").append("level=").append(mLevel)
+                .append(", used=").append(mUsed)
+                .append(", peak=").append(mPeak)
+                .append(", limit=").append(mLimit)
+                .append(", high=").append(mHighWatermark)
+                .append(", low=").append(mLowWatermark)
+                .append(", rejected=").append(mRejected)
+                .append(", rejectedBytes=").append(mRejectedBytes)
+                .append(", levelChanges=").append(mLevelChanges)
+                .append('}').toString();
+    }
+}
@@ -0,0 +1,248 @@
+package trikita.capture;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Writes captured packets as pcap (raw IPv4 link type). The VPN thread appends records to a staging
+// block, full blocks are written to the file by a writer thread. The VPN thread never waits for
+// the writer: if no free block is available the record is dropped. With compression enabled the
+// writer thread compresses each block into a BlockCodec frame while the next block is being filled.
+public class PacketCapture {
+
+    private static final String TAG = "PacketCapture";
+
+    public static final int BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_BLOCKS = 8;
+    // Index entries are appended every so many blocks, so a capture that was not closed stays searchable
+    private static final int INDEX_FLUSH_BLOCKS = 64;
+
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int PCAP_SNAPLEN = 0xffff;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private static final Block EOF = new Block(0);
+
+    private final MemoryBudget mBudget;
+    private final OutputStream mOut;
+    private final BlockCodec mCodec;
+    private final CaptureIndexWriter mIndex;
+    private final BlockingQueue<Block> mFilled = new ArrayBlockingQueue<>(MAX_BLOCKS + 1);
+    private final BlockingQueue<Block> mFree = new ArrayBlockingQueue<>(MAX_BLOCKS);
+    private final Thread mWriter;
+
+    private Block mCurrent;
+    private int mBlocks;
+    // Blocks handed to the writer and blocks it is done with, see drain()
+    private long mQueuedBlocks;
+    private long mWrittenBlocks;
+    private boolean mWriterDone;
+    private long mCaptured;
+    private long mDropped;
+    private volatile long mRawBytes;
+    private volatile long mWrittenBytes;
+    private volatile long mCompressNanos;
+
+    public PacketCapture(File file, MemoryBudget budget, boolean compress) throws IOException {
+        mBudget = budget;
+        mCodec = (compress ? new BlockCodec() : null);
+        if (!budget.reserve(CaptureIndexWriter.MEMORY)) {
+            throw new IOException("no memory for the capture index");
+        }
+        try {
+            mIndex = new CaptureIndexWriter(CaptureIndexWriter.indexFile(file));
+        } catch (IOException e) {
+            budget.release(CaptureIndexWriter.MEMORY);
+            throw e;
+        }
+        mOut = new FileOutputStream(file);
+        mCurrent = newBlock();
+        if (mCurrent == null) {
+            mOut.close();
+            mIndex.close();
+            budget.release(CaptureIndexWriter.MEMORY);
+            throw new IOException("no memory for capture staging");
+        }
+        ByteBuffer b = mCurrent.mData;
+        b.putInt(PCAP_MAGIC);
+        b.putShort((short) 2);
+        b.putShort((short) 4);
+        b.putInt(0);             // GMT offset
+        b.putInt(0);             // Timestamp accuracy
+        b.putInt(PCAP_SNAPLEN);
+        b.putInt(LINKTYPE_RAW);
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBlocks();
+            }
+        }, TAG);
+        mWriter.start();
+    }
+
+    public long getCaptured() { return mCaptured; }
+    public long getDropped() { return mDropped; }
+    public long getRawBytes() { return mRawBytes; }
+    public long getWrittenBytes() { return mWrittenBytes; }
+    public long getCompressNanos() { return mCompressNanos; }
+
+    // Captures the first length bytes of the originalLength bytes long IP packet at ip[offset],
+    // ip position and limit are not changed
+    public void capture(ByteBuffer ip, int offset, int length, int originalLength, long now) {
+        if (mBudget.getLevel() >= MemoryBudget.LEVEL_DROP_CAPTURE) {
+            mDropped++;
+            return;
+        }
+        ByteBuffer b = mCurrent.mData;
+        if (b.remaining() < RECORD_HEADER_LENGTH + length) {
+            Block next = mFree.poll();
+            if (next == null) {
+                next = newBlock();
+            }
+            if (next == null) {
+                mDropped++;
+                return;
+            }
+            mFilled.offer(mCurrent);
+            mQueuedBlocks++;
+            mCurrent = next;
+            b = next.mData;
+        }
+        b.putInt((int) (now / 1000));
+        b.putInt((int) (now % 1000) * 1000);
+        b.putInt(length);
+        b.putInt(originalLength);
+        if (ip.hasArray()) {
+            b.put(ip.array(), ip.arrayOffset() + offset, length);
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                b.put(ip.get(i));
+            }
+        }
+        mCaptured++;
+    }
+
+    // Flushes the staged records and waits for the writer to finish
+    public void close() {
+        mFilled.offer(mCurrent);
+        mQueuedBlocks++;
+        mCurrent = null;
+        try {
+            mFilled.put(EOF);
+            mWriter.join();
+            if (mCodec != null) {
+                mCodec.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(TAG, "capture closed, " + mCaptured + " packets, " + mDropped + " dropped, "
+                + mRawBytes + " bytes written as " + mWrittenBytes);
+    }
+
+    // Waits until the writer is done with every block handed to it so far, the staging block is
+    // kept. For tests and tools that must not lose records, the VPN thread never calls it.
+    public void drain() {
+        synchronized (this) {
+            try {
+                while (mWrittenBlocks < mQueuedBlocks && !mWriterDone) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void blockWritten() {
+        mWrittenBlocks++;
+        notifyAll();
+    }
+
+    private Block newBlock() {
+        if (mBlocks >= MAX_BLOCKS || !mBudget.reserveLowPriority(BLOCK_SIZE)) {
+            return null;
+        }
+        mBlocks++;
+        return new Block(BLOCK_SIZE);
+    }
+
+    private void writeBlocks() {
+        try {
+            if (mCodec != null) {
+                byte[] header = new byte[BlockCodec.FILE_HEADER_LENGTH];
+                BlockCodec.writeFileHeader(header, BLOCK_SIZE);
+                mOut.write(header);
+                mWrittenBytes += header.length;
+            }
+            while (true) {
+                Block block = mFilled.take();
+                if (block == EOF) {
+                    break;
+                }
+                ByteBuffer b = block.mData;
+                int length = b.position();
+                if (length > 0) {
+                    long offset = mWrittenBytes;
+                    if (mCodec != null) {
+                        long start = System.nanoTime();
+                        int n = mCodec.encode(b.array(), length);
+                        mCompressNanos += System.nanoTime() - start;
+                        mIndex.addBlock(b.array(), length, offset, n);
+                        // Block goes back to the VPN thread before the (slower) file write
+                        b.clear();
+                        mFree.offer(block);
+                        mOut.write(mCodec.getFrame(), 0, n);
+                        mWrittenBytes += n;
+                    } else {
+                        mIndex.addBlock(b.array(), length, offset, length);
+                        mOut.write(b.array(), 0, length);
+                        mWrittenBytes += length;
+                        b.clear();
+                        mFree.offer(block);
+                    }
+                    mRawBytes += length;
+                    if (mIndex.getBlockCount() % INDEX_FLUSH_BLOCKS == 0) {
+                        mOut.flush();
+                        mIndex.flush();
+                    }
+                } else {
+                    mFree.offer(block);
+                }
+                blockWritten();
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "capture writer interrupted");
+        } catch (IOException e) {
+            Log.e(TAG, "capture write failed", e);
+        } finally {
+            try {
+                mOut.close();
+                mIndex.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mBudget.release((long) mBlocks * BLOCK_SIZE + CaptureIndexWriter.MEMORY);
+            synchronized (this) {
+                mWriterDone = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private static class Block {
+        private final ByteBuffer mData;
+
+        Block(int size) {
+            mData = ByteBuffer.allocate(size);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package trikita.capture;
+
+import java.nio.ByteBuffer;
+
+// Incremental parser that extracts the server name from the first outbound bytes of a TCP flow:
+// SNI from a TLS ClientHello or the Host header of an HTTP/1.x request. The first segment is
+// parsed in place, bytes are copied (and the buffer allocated) only when the request spans
+// several segments.
+public class ServerNameParser {
+
+    public static final int MAX_BUFFER_SIZE = 4096;
+
+    public static final int NEED_MORE = 0;
+    public static final int DONE = 1;
+
+    private static final int FAILED = -1;
+
+    private static final int TLS_HANDSHAKE = 0x16;
+    private static final int TLS_CLIENT_HELLO = 1;
+    private static final int TLS_EXT_SERVER_NAME = 0;
+    private static final int MAX_METHOD_LENGTH = 8;
+    private static final byte[] HOST_HEADER = "\r\nhost:".getBytes();
+
+    private byte[] mBuffer;
+    private ByteBuffer mBufferView;
+    private int mBuffered;
+    private String mServerName;
+
+    // Feeds the next payload bytes, data position and limit are not changed
+    public int feed(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return NEED_MORE;
+        }
+        boolean first = (mBuffered == 0);
+        if (first && parse(data, data.position(), data.limit()) != NEED_MORE) {
+            return DONE;
+        }
+        if (mBuffer == null) {
+            mBuffer = new byte[MAX_BUFFER_SIZE];
+            mBufferView = ByteBuffer.wrap(mBuffer);
+        }
+        int n = Math.min(data.remaining(), MAX_BUFFER_SIZE - mBuffered);
+        for (int i = 0; i < n; i++) {
+            mBuffer[mBuffered++] = data.get(data.position() + i);
+        }
+        if ((first || parse(mBufferView, 0, mBuffered) == NEED_MORE) && mBuffered < MAX_BUFFER_SIZE) {
+            return NEED_MORE;
+        }
+        return DONE;
+    }
+
+    // Server name found, or null if the flow does not carry one
+    public String getServerName() { return mServerName; }
+
+    public void reset() {
+        mBuffered = 0;
+        mServerName = null;
+    }
+
+    private int parse(ByteBuffer b, int off, int end) {
+        int first = b.get(off) & 0xff;
+        if (first == TLS_HANDSHAKE) {
+            return parseClientHello(b, off, end);
+        } else if (first >= 'A' && first <= 'Z') {
+            return parseHTTP(b, off, end);
+        }
+        return FAILED;
+    }
+
+    private int parseClientHello(ByteBuffer b, int off, int end) {
+        // Record header (5 bytes), handshake header (4 bytes)
+        if (end - off < 9) {
+            return NEED_MORE;
+        }
+        if ((b.get(off + 1) & 0xff) != 3 || (b.get(off + 5) & 0xff) != TLS_CLIENT_HELLO) {
+            return FAILED;
+        }
+        int recordEnd = off + 5 + u16(b, off + 3);
+        // Client version (2) and random (32)
+        int p = off + 9 + 2 + 32;
+        if (p + 1 > end) {
+            return NEED_MORE;
+        }
+        p = p + 1 + (b.get(p) & 0xff); // Session ID
+        if (p + 2 > end) {
+            return NEED_MORE;
+        }
+        p = p + 2 + u16(b, p); // Cipher suites
+        if (p + 1 > end) {
+            return NEED_MORE;
+        }
+        p = p + 1 + (b.get(p) & 0xff); // Compression methods
+        if (p + 2 > end) {
+            return (p >= recordEnd ? FAILED : NEED_MORE);
+        }
+        int extEnd = Math.min(p + 2 + u16(b, p), recordEnd);
+        p = p + 2;
+        while (p + 4 <= extEnd) {
+            if (p + 4 > end) {
+                return NEED_MORE;
+            }
+            int type = u16(b, p);
+            int len = u16(b, p + 2);
+            p = p + 4;
+            if (type == TLS_EXT_SERVER_NAME) {
+                if (p + len > end) {
+                    return NEED_MORE;
+                }
+                // Server name list length (2), name type (1), name length (2)
+                if (len < 5 || (b.get(p + 2) & 0xff) != 0) {
+                    return FAILED;
+                }
+                int nameLength = u16(b, p + 3);
+                if (p + 5 + nameLength > p + len) {
+                    return FAILED;
+                }
+                mServerName = ascii(b, p + 5, p + 5 + nameLength);
+                return DONE;
+            }
+            p = p + len;
+        }
+        return FAILED;
+    }
+
+    private int parseHTTP(ByteBuffer b, int off, int end) {
+        int i = off;
+        while (i < end && i - off <= MAX_METHOD_LENGTH) {
+            int c = b.get(i) & 0xff;
+            if (c == ' ') {
+                break;
+            } else if (c < 'A' || c > 'Z') {
+                return FAILED;
+            }
+            i++;
+        }
+        if (i == end) {
+            return NEED_MORE;
+        } else if (i - off > MAX_METHOD_LENGTH) {
+            return FAILED;
+        }
+        for (; i < end; i++) {
+            if (b.get(i) != '\r') {
+                continue;
+            }
+            if (i + 3 < end && b.get(i + 1) == '\n' && b.get(i + 2) == '\r' && b.get(i + 3) == '\n') {
+                return FAILED; // End of headers, no Host
+            }
+            if (i + HOST_HEADER.length <= end && matchesHost(b, i)) {
+                int start = i + HOST_HEADER.length;
+                while (start < end && b.get(start) == ' ') {
+                    start++;
+                }
+                int stop = start;
+                while (stop < end && b.get(stop) != '\r') {
+                    stop++;
+                }
+                if (stop == end) {
+                    return NEED_MORE;
+                }
+                // Strip the port
+                int colon = stop;
+                while (colon > start && b.get(colon - 1) >= '0' && b.get(colon - 1) <= '9') {
+                    colon--;
+                }
+                if (colon > start && colon < stop && b.get(colon - 1) == ':') {
+                    stop = colon - 1;
+                }
+                mServerName = ascii(b, start, stop);
+                return DONE;
+            }
+        }
+        return NEED_MORE;
+    }
+
+    private static boolean matchesHost(ByteBuffer b, int p) {
+        for (int j = 0; j < HOST_HEADER.length; j++) {
+            if (Character.toLowerCase((char) b.get(p + j)) != HOST_HEADER[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u16(ByteBuffer b, int p) {
+        return b.getShort(p) & 0xffff;
+    }
+
+    private static String ascii(ByteBuffer b, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase((char) (b.get(i) & 0xff));
+        }
+        return new String(chars);
+    }
+}
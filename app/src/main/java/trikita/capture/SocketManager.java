@@ -1,43 +1,125 @@
 package trikita.capture;
 
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 public class SocketManager {
 
     private static final String TAG = "SocketManager";
+    // Per-connection and per-packet tracing. Off, so that the packet path builds no log strings.
+    private static final boolean DEBUG = false;
+
+    // Max number of datagrams read from one UDP socket per readiness event. Every datagram takes a
+    // 64 KB pooled buffer, so the upper bound keeps a full batch within a quarter of the default
+    // memory budget.
+    public static final int DEFAULT_UDP_DRAIN_BUDGET = 32;
+    public static final int MAX_UDP_DRAIN_BUDGET = 64;
+
+    // The TUN side of the engine, implemented by VPNThread
+    public interface Tunnel extends FlowExporter.SocketProtector {
+        // Upstream sockets must bypass the VPN
+        void protect(Socket socket);
+        void write(ByteBuffer ip);
+        void write(ByteBuffer[] batch, int count);
+    }
 
     private final Selector mSelector;
-    private final VPNThread mVPN;
+    private final Tunnel mVPN;
 
     private final IPUtils.IPHeader mIPHeader = new IPUtils.IPHeader();
     private final IPUtils.UDPHeader mUDPHeader = new IPUtils.UDPHeader();
     private final IPUtils.TCPHeader mTCPHeader = new IPUtils.TCPHeader();
 
+    // Window advertised to the apps while the memory budget is under pressure
+    private static final int PRESSURE_WINDOW = 4096;
+
+    private static final int DNS_CACHE_SIZE = 1024;
+    private static final int TCB_POOL_SIZE = 64;
+    // Max number of upstream TCP connects started per select round
+    private static final int CONNECT_BATCH = 8;
+
+    // UDP has no end of flow, sockets without traffic for this long are closed
+    private static final long UDP_IDLE_TIMEOUT = 30 * 1000;
+    // Long-lived flows are reported to the flow exporter at least this often
+    private static final long ACTIVE_TIMEOUT = 60 * 1000;
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final long STATS_INTERVAL = 30 * 1000;
+
     private final Random mRandom = new Random();
     private final ByteBuffer mIPOutBuffer = ByteBuffer.allocate(IPUtils.MAX_DATAGRAM_SIZE);
-
-    private final Map<IPUtils.SocketID, DatagramChannel> mUDPSockets = new HashMap<>();
+    private final MemoryBudget mBudget;
+    private final BufferPool mBufferPool;
+    private final TCBPool mTCBPool;
+    private final IPReassembler mReassembler;
+    private final ConnectQueue mConnects = new ConnectQueue();
+    private final CapturePolicy mCapturePolicy;
+    private final PacketCapture mCapture;
+    private final LiveExport mLiveExport;
+    private final FlowExporter mExporter;
+    // Reused key for per-packet socket lookups, copied when a new flow is created
+    private final IPUtils.SocketID mLookupID = new IPUtils.SocketID();
+    private long mDeferredSyns;
+    private long mNextSweep;
+    private long mNextStats;
+    private final ByteBuffer[] mUDPBatch;
+    // UDP keys with OP_READ cleared because no buffer was left, resumed at LEVEL_NORMAL
+    private final List<SelectionKey> mThrottledUDP = new ArrayList<>();
+
+    private final DNSCache mDNSCache = new DNSCache(DNS_CACHE_SIZE);
+    private final UIDResolver mUIDResolver = new UIDResolver();
+    private final FlowTable mFlowTable = new FlowTable(FlowTable.DEFAULT_CAPACITY);
+
+    private final Map<IPUtils.SocketID, UDPFlow> mUDPSockets = new HashMap<>();
     private final Map<IPUtils.SocketID, TCB> mTCPSockets = new HashMap<>();
 
-    public SocketManager(VPNThread vpn) throws IOException {
+    // udpDrainBudget is the number of datagrams read from a ready UDP socket per select round
+    public SocketManager(Tunnel vpn, MemoryBudget budget, CapturePolicy policy, int udpDrainBudget,
+                         PacketCapture capture, LiveExport liveExport, FlowExporter exporter) throws IOException {
         mVPN = vpn;
+        mBudget = budget;
+        mCapturePolicy = policy;
+        mCapture = capture;
+        mLiveExport = liveExport;
+        mExporter = exporter;
+        mUDPBatch = new ByteBuffer[Math.max(1, Math.min(udpDrainBudget, MAX_UDP_DRAIN_BUDGET))];
+        mBufferPool = new BufferPool(IPUtils.MAX_DATAGRAM_SIZE, mUDPBatch.length, budget);
+        mTCBPool = new TCBPool(TCB_POOL_SIZE, budget);
+        mReassembler = new IPReassembler(mBufferPool);
         mSelector = Selector.open();
     }
 
+    public MemoryBudget getMemoryBudget() { return mBudget; }
+    public long getDeferredSyns() { return mDeferredSyns; }
+    public TCBPool getTCBPool() { return mTCBPool; }
+    public IPReassembler getReassembler() { return mReassembler; }
+    public ConnectQueue getConnectQueue() { return mConnects; }
+    public UIDResolver getUIDResolver() { return mUIDResolver; }
+    public FlowTable getFlowTable() { return mFlowTable; }
+    public int getThrottledUDPCount() { return mThrottledUDP.size(); }
+
     public void select(ByteBuffer ip) throws IOException {
+        if (!mThrottledUDP.isEmpty() && mBudget.getLevel() == MemoryBudget.LEVEL_NORMAL) {
+            resumeUDP();
+        }
         mSelector.select(10);
+        if (mReassembler.hasPending()) {
+            mReassembler.expire(SystemClock.elapsedRealtime());
+        }
         Iterator it = mSelector.selectedKeys().iterator();
         while (it.hasNext()) {
             SelectionKey k = (SelectionKey) it.next();
@@ -47,17 +129,93 @@ public class SocketManager {
             }
             if (k.channel() instanceof DatagramChannel) {
                 if (k.isReadable()) {
-                    processUDPIn(k, ip);
+                    processUDPIn(k);
                 }
             } else if (k.channel() instanceof SocketChannel) {
                 if (k.isConnectable()) {
                     processTCPConnect(k);
                 }
-                if (k.isReadable()) {
+                // A failed connect closes the TCB and cancels its key
+                if (k.isValid() && k.isReadable()) {
                     processTCPIn(k, ip);
                 }
             }
         }
+        startTCPConnects();
+        if (mUIDResolver.hasPending()) {
+            mUIDResolver.resolvePending(SystemClock.elapsedRealtime(), mFlowTable);
+        }
+        long now = System.currentTimeMillis();
+        if (now >= mNextSweep) {
+            mNextSweep = now + SWEEP_INTERVAL;
+            sweep(now);
+        }
+        if (now >= mNextStats) {
+            mNextStats = now + STATS_INTERVAL;
+            logStats();
+        }
+        mFlowTable.publish();
+    }
+
+    // Memory budget, admission control and connect latency metrics. Level changes are also logged by
+    // MemoryBudget.
+    private void logStats() {
+        Log.d(TAG, mBudget + " deferredSyns=" + mDeferredSyns
+                + " tcbs=" + mTCPSockets.size() + " created=" + mTCBPool.getCreated()
+                + " reused=" + mTCBPool.getReused() + " pooled=" + mTCBPool.getPooledCount()
+                + " udpFlows=" + mUDPSockets.size() + " udpThrottled=" + mThrottledUDP.size()
+                + " connectsPending=" + mConnects.getPendingCount() + " inFlight=" + mConnects.getInFlightCount()
+                + " connected=" + mConnects.getConnected() + " failed=" + mConnects.getFailed()
+                + " queueWait=[" + mConnects.getQueueWait() + "] connectTime=[" + mConnects.getConnectTime() + "]"
+                + (mCapture != null ? " captureDropped=" + mCapture.getDropped() : ""));
+    }
+
+    // Closes idle UDP flows and reports the long-lived ones that are due for an active timeout
+    private void sweep(long now) {
+        Iterator<UDPFlow> udp = mUDPSockets.values().iterator();
+        while (udp.hasNext()) {
+            UDPFlow flow = udp.next();
+            if (now - flow.getLastActive() >= UDP_IDLE_TIMEOUT) {
+                if (DEBUG) {
+                    Log.d(TAG, "udp idle: " + flow.getID());
+                }
+                udp.remove();
+                flow.closeSocket();
+                mFlowTable.close(flow.getRecord(), FlowTable.CLOSE_IDLE, now);
+                exportFlow(flow, FlowExporter.END_IDLE_TIMEOUT, now);
+            } else {
+                exportActive(flow, now);
+            }
+        }
+        if (mExporter != null) {
+            for (TCB tcb : mTCPSockets.values()) {
+                exportActive(tcb, now);
+            }
+        }
+    }
+
+    private void exportActive(Flow flow, long now) {
+        int slot = flow.getRecord();
+        if (mExporter != null && slot >= 0 && now - mFlowTable.getExportedAt(slot) >= ACTIVE_TIMEOUT) {
+            mExporter.export(mFlowTable, slot, FlowExporter.END_ACTIVE_TIMEOUT, now);
+        }
+    }
+
+    private void exportFlow(Flow flow, int endReason, long now) {
+        if (mExporter != null) {
+            mExporter.export(mFlowTable, flow.getRecord(), endReason, now);
+        }
+    }
+
+    // Reports the flows still open when the VPN goes down
+    public void exportOpenFlows() {
+        long now = System.currentTimeMillis();
+        for (UDPFlow flow : mUDPSockets.values()) {
+            exportFlow(flow, FlowExporter.END_FORCED, now);
+        }
+        for (TCB tcb : mTCPSockets.values()) {
+            exportFlow(tcb, FlowExporter.END_FORCED, now);
+        }
     }
 
     //
@@ -67,6 +225,14 @@ public class SocketManager {
     public void processIPOut(ByteBuffer ip) {
 //        Log.d(TAG, IPUtils.hexdump("IP OUT: ", ip));
         IPUtils.IPHeader.parse(ip, mIPHeader);
+        if (IPReassembler.isFragment(mIPHeader)) {
+            ByteBuffer datagram = mReassembler.offer(ip, mIPHeader, SystemClock.elapsedRealtime());
+            if (datagram != null) {
+                processIPOut(datagram);
+                mBufferPool.release(datagram);
+            }
+            return;
+        }
         if (mIPHeader.protocol == IPUtils.PROTO_TCP) {
             IPUtils.TCPHeader.parse(ip, mTCPHeader);
             processTCPOut(mIPHeader, mTCPHeader, ip);
@@ -81,23 +247,59 @@ public class SocketManager {
     }
 
     private void processIPIn(ByteBuffer ip, IPUtils.SocketID id, int n, TCB tcb, int flags) {
-        int proto;
+        fillIPIn(ip, id, IPUtils.PROTO_TCP, tcb.getLocalSeq(), tcb.getLocalAck(), flags, n);
+//        Log.d(TAG, IPUtils.hexdump("IP IN: ", ip));
+        capture(tcb, ip, IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.TCPHeader.DEFAULT_LENGTH, n);
+        // Pure ACKs are made up here to acknowledge the app's segments, the remote end never sent them
+        if (n > 0 || flags != IPUtils.TCPHeader.TCP_FLAG_ACK) {
+            mFlowTable.countIn(tcb.getRecord(), ip.limit(), System.currentTimeMillis());
+        }
+        mVPN.write(ip);
+    }
+
+    // Sends a TCP segment without payload, needs no TCB
+    private void sendTCP(IPUtils.SocketID id, int seq, int ack, int flags) {
+        mIPOutBuffer.clear();
+        fillIPIn(mIPOutBuffer, id, IPUtils.PROTO_TCP, seq, ack, flags, 0);
+        capture(null, mIPOutBuffer, IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.TCPHeader.DEFAULT_LENGTH, 0);
+        mVPN.write(mIPOutBuffer);
+    }
+
+    // Hands the packet starting at ip[0] to the capture file and live export, the policy is applied
+    // before any copy
+    private void capture(Flow flow, ByteBuffer ip, int headerLength, int payloadLength) {
+        boolean live = (mLiveExport != null && mLiveExport.hasClients());
+        if (mCapture == null && !live) {
+            return;
+        }
+        int length = mCapturePolicy.captureLength(flow, headerLength, payloadLength);
+        if (length == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (mCapture != null) {
+            mCapture.capture(ip, 0, length, headerLength + payloadLength, now);
+        }
+        if (live) {
+            mLiveExport.offer(ip, 0, length, headerLength + payloadLength, now);
+        }
+    }
+
+    // Writes IP and TCP/UDP headers in front of the n payload bytes, leaves ip ready to be written
+    private void fillIPIn(ByteBuffer ip, IPUtils.SocketID id, int proto, int seq, int ack, int flags, int n) {
         ip.position(IPUtils.IPHeader.DEFAULT_LENGTH);
-        if (tcb != null) {
-            IPUtils.TCPHeader.fill(ip, id.dst(), id.src(), tcb.getLocalSeq(), tcb.getLocalAck(), flags, n);
+        if (proto == IPUtils.PROTO_TCP) {
+            int window = (mBudget.getLevel() >= MemoryBudget.LEVEL_SHRINK_WINDOW ? PRESSURE_WINDOW : 0xffff);
+            IPUtils.TCPHeader.fill(ip, id.dstAddr(), id.dstPort(), id.srcAddr(), id.srcPort(), seq, ack, flags, window, n);
             n = n + IPUtils.TCPHeader.DEFAULT_LENGTH;
-            proto = IPUtils.PROTO_TCP;
         } else {
-            IPUtils.UDPHeader.fill(ip, id.dst(), id.src(), n);
+            IPUtils.UDPHeader.fill(ip, id.dstPort(), id.srcPort(), n);
             n = n + IPUtils.UDPHeader.DEFAULT_LENGTH;
-            proto = IPUtils.PROTO_UDP;
         }
         ip.position(0);
-        IPUtils.IPHeader.fill(ip, id.dst(), id.src(), proto, n);
+        IPUtils.IPHeader.fill(ip, id.dstAddr(), id.srcAddr(), proto, n);
         ip.position(0);
         ip.limit(IPUtils.IPHeader.DEFAULT_LENGTH + n);
-//        Log.d(TAG, IPUtils.hexdump("IP IN: ", ip));
-        mVPN.write(ip);
     }
 
     //
@@ -106,18 +308,28 @@ public class SocketManager {
 
     private void processUDPOut(IPUtils.IPHeader ipHeader, IPUtils.UDPHeader udpHeader, ByteBuffer data) {
         try {
-            IPUtils.SocketID id = IPUtils.SocketID.fromUDP(ipHeader, udpHeader);
-            DatagramChannel socket = mUDPSockets.get(id);
-            if (socket == null) {
-                socket = DatagramChannel.open();
+            UDPFlow flow = mUDPSockets.get(mLookupID.set(ipHeader, udpHeader.srcPort, udpHeader.dstPort));
+            if (flow == null) {
+                IPUtils.SocketID id = new IPUtils.SocketID().set(mLookupID);
+                DatagramChannel socket = DatagramChannel.open();
+                flow = new UDPFlow(id, socket);
+                long now = SystemClock.elapsedRealtime();
+                flow.setHostname(mDNSCache.lookup(IPUtils.toInt(ipHeader.dst), now));
+                flow.setUid(mUIDResolver.resolve(IPUtils.PROTO_UDP, flow, now));
+                flow.resetCapture(mCapturePolicy.sample(id));
+                flow.setRecord(mFlowTable.open(flow, IPUtils.PROTO_UDP, System.currentTimeMillis()));
                 socket.connect(id.dst());
                 socket.configureBlocking(false);
-                socket.register(mSelector, SelectionKey.OP_READ, id);
+                socket.register(mSelector, SelectionKey.OP_READ, flow);
                 // TODO: might need to bind to fix android bug with incorrect src ip address
                 mVPN.protect(socket.socket());
-                mUDPSockets.put(id, socket);
+                mUDPSockets.put(id, flow);
             }
-            int n = socket.write(data);
+            capture(flow, data, data.position(), data.remaining());
+            long now = System.currentTimeMillis();
+            flow.setLastActive(now);
+            mFlowTable.countOut(flow.getRecord(), data.limit(), now);
+            int n = flow.getSocket().write(data);
             if (data.hasRemaining()) {
                 IPUtils.panic("udp write failed: written " + n + ", remaining " + data.remaining());
             }
@@ -126,38 +338,88 @@ public class SocketManager {
         }
     }
 
-    private void processUDPIn(SelectionKey k, ByteBuffer ip) {
+    private void processUDPIn(SelectionKey k) {
+        UDPFlow flow = (UDPFlow) k.attachment();
+        IPUtils.SocketID id = flow.getID();
+        DatagramChannel socket = (DatagramChannel) k.channel();
+        boolean dns = (id.dstPort() == DNSCache.DNS_PORT);
+        ByteBuffer[] batch = mUDPBatch;
+        int count = 0;
         try {
-            ip.clear();
-            ip.position(IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH);
-            int n = 0;
-            IPUtils.SocketID id = (IPUtils.SocketID) k.attachment();
-            n = ((DatagramChannel) k.channel()).read(ip);
-            if (n <= 0) {
-                IPUtils.panic("failed reading from udp socket: " + n);
-                return;
+            // Drain the socket until it would block, each datagram gets its own buffer
+            while (count < batch.length) {
+                ByteBuffer ip = mBufferPool.acquire();
+                if (ip == null) {
+                    // Out of budget, leave the rest in the socket receive buffer. The key would stay
+                    // readable and select() would spin, so stop reading until the pressure is gone.
+                    k.interestOps(0);
+                    mThrottledUDP.add(k);
+                    break;
+                }
+                ip.position(IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH);
+                int n = socket.read(ip);
+                if (n <= 0) {
+                    mBufferPool.release(ip);
+                    break;
+                }
+                if (dns) {
+                    mDNSCache.parseResponse(ip, IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH,
+                            n, SystemClock.elapsedRealtime());
+                }
+                fillIPIn(ip, id, IPUtils.PROTO_UDP, 0, 0, 0, n);
+                capture(flow, ip, IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH, n);
+                long now = System.currentTimeMillis();
+                flow.setLastActive(now);
+                mFlowTable.countIn(flow.getRecord(), ip.limit(), now);
+                batch[count++] = ip;
+            }
+            if (count == 0 && mBudget.getLevel() == MemoryBudget.LEVEL_NORMAL) {
+                IPUtils.panic("failed reading from udp socket: " + id);
             }
-            ip.flip();
-            processIPIn(ip, id, n, null, 0);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mVPN.write(batch, count);
+            for (int i = 0; i < count; i++) {
+                mBufferPool.release(batch[i]);
+                batch[i] = null;
+            }
         }
     }
 
+    private void resumeUDP() {
+        for (SelectionKey k : mThrottledUDP) {
+            // Idle flows may have been closed in the meantime
+            if (k.isValid()) {
+                k.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        mThrottledUDP.clear();
+    }
+
 
     //
     // TCP
     //
 
     private void processTCPOut(IPUtils.IPHeader ipHeader, IPUtils.TCPHeader tcpHeader, ByteBuffer data) {
-        IPUtils.SocketID id = IPUtils.SocketID.fromTCP(ipHeader, tcpHeader);
+        IPUtils.SocketID id = mLookupID.set(ipHeader, tcpHeader.srcPort, tcpHeader.dstPort);
         TCB tcb = mTCPSockets.get(id);
         boolean ok = false;
         if ((tcpHeader.flags & IPUtils.TCPHeader.TCP_FLAG_SYN) != 0) {
+            if (tcb == null && mBudget.getLevel() >= MemoryBudget.LEVEL_DEFER_SYN) {
+                // Ignore the SYN, the app will retransmit it when we hopefully have memory again
+                if (DEBUG) {
+                    Log.d(TAG, "SYN deferred under memory pressure: " + id);
+                }
+                mDeferredSyns++;
+                return;
+            }
             if (tcb == null) {
-                if ((tcb = startTCPConnect(id, ipHeader, tcpHeader)) != null) {
-                    mTCPSockets.put(id, tcb);
+                if ((tcb = queueTCPConnect(id, ipHeader, tcpHeader)) == null) {
+                    return; // Dropped, the app will retransmit the SYN
                 }
+                mTCPSockets.put(tcb.getID(), tcb);
             } else {
                 processTCPDuplicateSynOut(id, tcpHeader);
             }
@@ -169,16 +431,23 @@ public class SocketManager {
             return;
         }
 
+        capture(tcb, data, data.position(), data.remaining());
+        mFlowTable.countOut(tcb.getRecord(), data.limit(), System.currentTimeMillis());
+
         if ((tcpHeader.flags & IPUtils.TCPHeader.TCP_FLAG_ACK) != 0) {
             processTCPAckOut(tcb, tcpHeader, data);
             ok = true;
         }
 
         if ((tcpHeader.flags & IPUtils.TCPHeader.TCP_FLAG_RST) != 0) {
-            closeTCP(id);
+            closeTCP(id, FlowTable.CLOSE_RST);
             ok = true;
         }
 
+        if (tcb.getStatus() == TCB.CLOSED) {
+            return; // Connection is gone and the TCB is back in the pool
+        }
+
         if ((tcpHeader.flags & IPUtils.TCPHeader.TCP_FLAG_FIN) != 0) {
             processTCPFinOut(tcb, tcpHeader);
             ok = true;
@@ -192,7 +461,9 @@ public class SocketManager {
     private void processTCPFinOut(TCB tcb, IPUtils.TCPHeader tcpHeader) {
         try {
             if (tcb.getStatus() == TCB.ESTABLISHED) {
-                Log.d(TAG, "FIN out for full-duplex connection " + tcb.getID());
+                if (DEBUG) {
+                    Log.d(TAG, "FIN out for full-duplex connection " + tcb.getID());
+                }
                 tcb.setLocalAck(tcpHeader.seq + 1);
                 tcb.setRemoteAck(tcpHeader.ack);
                 tcb.setStatus(TCB.CLOSE_WAIT);
@@ -205,12 +476,14 @@ public class SocketManager {
                     tcb.getSocket().socket().shutdownOutput();
                 }
             } else if (tcb.getStatus() == TCB.CLOSE_WAIT_2) {
-                Log.d(TAG, "FIN out for half-duplex connection " + tcb.getID());
+                if (DEBUG) {
+                    Log.d(TAG, "FIN out for half-duplex connection " + tcb.getID());
+                }
                 tcb.setLocalAck(tcpHeader.seq + 1);
                 tcb.setRemoteAck(tcpHeader.ack);
                 processIPIn(mIPOutBuffer, tcb.getID(), 0, tcb, IPUtils.TCPHeader.TCP_FLAG_ACK);
                 tcb.advanceSeq(1);
-                closeTCP(tcb.getID());
+                closeTCP(tcb.getID(), FlowTable.CLOSE_FIN);
             } else {
                 IPUtils.panic("FIN out unexpected: " + tcb.getID());
             }
@@ -219,18 +492,28 @@ public class SocketManager {
         }
     }
 
-    private void closeTCP(IPUtils.SocketID id) {
-        Log.d(TAG, "connection close (RST or FIN or just cleanup):" + id);
-        TCB tcb = mTCPSockets.get(id);
+    private void closeTCP(IPUtils.SocketID id, int reason) {
+        if (DEBUG) {
+            Log.d(TAG, "connection close (RST or FIN or just cleanup):" + id);
+        }
+        TCB tcb = mTCPSockets.remove(id);
         if (tcb != null) {
-            Log.d(TAG, "close tcb" + tcb.getID());
+            if (DEBUG) {
+                Log.d(TAG, "close tcb" + tcb.getID());
+            }
+            long now = System.currentTimeMillis();
+            mFlowTable.close(tcb.getRecord(), reason, now);
+            exportFlow(tcb, FlowExporter.endReason(reason), now);
+            mConnects.cancel(tcb);
             tcb.closeSocket();
+            mTCBPool.release(tcb);
         }
-        mTCPSockets.remove(id);
     }
 
     private void processTCPDuplicateSynOut(IPUtils.SocketID id, IPUtils.TCPHeader tcpHeader) {
-        Log.d(TAG, "duplicate SYN: " + id);
+        if (DEBUG) {
+            Log.d(TAG, "duplicate SYN: " + id);
+        }
         TCB tcb = mTCPSockets.get(id);
         if (tcb != null && tcb.getStatus() == TCB.SYN_SENT) {
             tcb.setLocalAck(tcpHeader.seq + 1);
@@ -240,81 +523,132 @@ public class SocketManager {
     }
 
     private void resetTCP(IPUtils.SocketID id, int defaultAck) {
-        Log.d(TAG, "RST: " + id);
+        if (DEBUG) {
+            Log.d(TAG, "RST: " + id);
+        }
         TCB tcb = mTCPSockets.get(id);
-        if (tcb == null) {
-            tcb = new TCB(id, null, 0, 0, defaultAck, 0);
+        if (tcb != null) {
+            sendTCP(id, tcb.getLocalSeq(), tcb.getLocalAck(), IPUtils.TCPHeader.TCP_FLAG_RST);
+        } else {
+            sendTCP(id, 0, defaultAck, IPUtils.TCPHeader.TCP_FLAG_RST);
         }
-        mIPOutBuffer.clear();
-        processIPIn(mIPOutBuffer, id, 0, tcb, IPUtils.TCPHeader.TCP_FLAG_RST);
-        closeTCP(id);
+        closeTCP(id, FlowTable.CLOSE_ERROR);
         IPUtils.panic("resetTCP");
     }
 
-    private TCB startTCPConnect(IPUtils.SocketID id, IPUtils.IPHeader ipHeader, IPUtils.TCPHeader tcpHeader) {
-        Log.d(TAG, "first SYN: " + id);
-        TCB tcb = null;
-        SocketChannel socket = null;
+    // Takes the SYN into the connect queue, the upstream connect is started by startTCPConnects()
+    private TCB queueTCPConnect(IPUtils.SocketID id, IPUtils.IPHeader ipHeader, IPUtils.TCPHeader tcpHeader) {
+        if (DEBUG) {
+            Log.d(TAG, "first SYN: " + id);
+        }
+        if (mConnects.isFull()) {
+            Log.d(TAG, "connect queue is full: " + id);
+            mDeferredSyns++;
+            return null;
+        }
+        TCB tcb = mTCBPool.acquire(id, null, mRandom.nextInt(Short.MAX_VALUE + 1), tcpHeader.seq,
+                tcpHeader.seq + 1, tcpHeader.ack);
+        if (tcb == null) {
+            Log.d(TAG, "no memory for a new connection: " + id);
+            return null;
+        }
+        long now = SystemClock.elapsedRealtime();
+        tcb.setHostname(mDNSCache.lookup(IPUtils.toInt(ipHeader.dst), now));
+        tcb.setUid(mUIDResolver.resolve(IPUtils.PROTO_TCP, tcb, now));
+        tcb.resetCapture(mCapturePolicy.sample(id));
+        tcb.setRecord(mFlowTable.open(tcb, IPUtils.PROTO_TCP, System.currentTimeMillis()));
+        mConnects.offer(tcb, now);
+        return tcb;
+    }
+
+    private void startTCPConnects() {
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < CONNECT_BATCH; i++) {
+            TCB tcb = mConnects.next(now);
+            if (tcb == null) {
+                return;
+            }
+            startTCPConnect(tcb);
+        }
+    }
+
+    private void startTCPConnect(TCB tcb) {
+        if (DEBUG) {
+            Log.d(TAG, "TCP connect started: " + tcb.getID());
+        }
         try {
-            socket = SocketChannel.open();
+            SocketChannel socket = SocketChannel.open();
+            tcb.setSocket(socket);
             socket.configureBlocking(false);
             mVPN.protect(socket.socket());
-
-            tcb = new TCB(id, socket, mRandom.nextInt(Short.MAX_VALUE + 1), tcpHeader.seq,
-                    tcpHeader.seq + 1, tcpHeader.ack);
-
-            socket.connect(id.dst());
-            if (socket.finishConnect()) {
-                Log.d(TAG, "TCP connect finished immediately");
+            boolean connected = socket.connect(tcb.getID().dst());
+            mFlowTable.startRtt(tcb.getRecord(), System.currentTimeMillis());
+            tcb.setSelectionKey(socket.register(mSelector,
+                    connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, tcb));
+            if (connected) {
+                if (DEBUG) {
+                    Log.d(TAG, "TCP connect finished immediately");
+                }
                 finishTCPConnect(tcb, mIPOutBuffer);
-                tcb.setSelectionKey(socket.register(mSelector, SelectionKey.OP_READ, tcb));
-            } else {
-                Log.d(TAG, "TCP connect started");
-                tcb.setSelectionKey(socket.register(mSelector, SelectionKey.OP_CONNECT, tcb));
             }
-            return tcb;
         } catch (IOException e) {
-            e.printStackTrace();
-            resetTCP(tcb.getID(), 0);
-            if (tcb != null) {
-                mTCPSockets.remove(tcb.getID());
-            }
-            if (socket != null) {
-                try { socket.close(); } catch (IOException ignore) { ignore.printStackTrace(); }
-            }
-            return null;
+            Log.d(TAG, "TCP connect failed: " + tcb.getID() + " " + e.getMessage());
+            refuseTCP(tcb);
         }
     }
 
-    private void finishTCPConnect(TCB tcb, ByteBuffer ip) {
-        Log.d(TAG, "SYN+ACK: " + tcb.getID());
+    // Answers the app's SYN with a RST when the upstream connect fails
+    private void refuseTCP(TCB tcb) {
+        sendTCP(tcb.getID(), 0, tcb.getLocalAck(), IPUtils.TCPHeader.TCP_FLAG_RST | IPUtils.TCPHeader.TCP_FLAG_ACK);
+        closeTCP(tcb.getID(), FlowTable.CLOSE_ERROR);
+    }
+
+    // Returns true once the upstream connect is done and the SYN+ACK is sent to the app
+    private boolean finishTCPConnect(TCB tcb, ByteBuffer ip) {
+        if (DEBUG) {
+            Log.d(TAG, "SYN+ACK: " + tcb.getID());
+        }
         try {
             if (tcb.getSocket().finishConnect()) {
+                mConnects.connected(tcb, SystemClock.elapsedRealtime());
                 IPUtils.SocketID id = tcb.getID();
                 tcb.setStatus(TCB.SYN_RECEIVED);
 
-                Log.d(TAG, "finishTCPConnect" + tcb.getID());
+                if (DEBUG) {
+                    Log.d(TAG, "finishTCPConnect" + tcb.getID());
+                }
 
                 // Reply with SYN+ACK
                 ip.clear();
                 processIPIn(ip, id, 0, tcb, IPUtils.TCPHeader.TCP_FLAG_SYN | IPUtils.TCPHeader.TCP_FLAG_ACK);
                 tcb.advanceSeq(1); // SYN counts as a byte
+                return true;
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.d(TAG, "TCP connect failed: " + tcb.getID() + " " + e.getMessage());
+            refuseTCP(tcb);
         }
+        return false;
     }
 
     private void processTCPAckOut(TCB tcb, IPUtils.TCPHeader tcpHeader, ByteBuffer data) {
-        Log.d(TAG, "ACK outgoing: " + tcb.getID());
+        if (DEBUG) {
+            Log.d(TAG, "ACK outgoing: " + tcb.getID());
+        }
         try {
-            if (tcb.getStatus() == TCB.SYN_RECEIVED) {
-                Log.d(TAG, "First ACK " + tcb.getID());
+            if (tcb.getStatus() == TCB.SYN_SENT) {
+                return; // Nothing to acknowledge before our SYN+ACK, the upstream connect is not done
+            } else if (tcb.getStatus() == TCB.SYN_RECEIVED) {
+                if (DEBUG) {
+                    Log.d(TAG, "First ACK " + tcb.getID());
+                }
                 tcb.setStatus(TCB.ESTABLISHED);
                 tcb.setSelectionKey(tcb.getSocket().register(mSelector, SelectionKey.OP_READ, tcb));
             } else if (tcb.getStatus() == TCB.LAST_ACK) {
-                Log.d(TAG, "Last ACK " + tcb.getID());
-                closeTCP(tcb.getID());
+                if (DEBUG) {
+                    Log.d(TAG, "Last ACK " + tcb.getID());
+                }
+                closeTCP(tcb.getID(), FlowTable.CLOSE_FIN);
                 return;
             }
 
@@ -323,6 +657,16 @@ public class SocketManager {
                 return; // Zero length ACK
             }
 
+            if (!tcb.isInspected()) {
+                tcb.inspectPayload(data);
+                if (tcb.isInspected() && tcb.getServerName() != null) {
+                    if (DEBUG) {
+                        Log.d(TAG, "server name " + tcb.getServerName() + ": " + tcb.getID());
+                    }
+                    mFlowTable.setHostname(tcb.getRecord(), tcb.getServerName());
+                }
+            }
+
             while (data.hasRemaining()) {
                 tcb.getSocket().write(data);
             }
@@ -339,42 +683,60 @@ public class SocketManager {
     }
 
     private void processTCPConnect(SelectionKey k) {
-        Log.d(TAG, "TCP connect finished for " + k);
-        finishTCPConnect((TCB) k.attachment(), mIPOutBuffer);
-        k.interestOps(SelectionKey.OP_READ);
+        if (DEBUG) {
+            Log.d(TAG, "TCP connect finished for " + k);
+        }
+        // Stays in OP_CONNECT until the connect completes or fails
+        if (finishTCPConnect((TCB) k.attachment(), mIPOutBuffer)) {
+            k.interestOps(SelectionKey.OP_READ);
+        }
     }
 
     private void processTCPIn(SelectionKey k, ByteBuffer ip) {
         TCB tcb = (TCB) k.attachment();
-        Log.d(TAG, "ACK incoming: " + tcb.getID() + " status = " + tcb.getStatus());
+        if (DEBUG) {
+            Log.d(TAG, "ACK incoming: " + tcb.getID() + " status = " + tcb.getStatus());
+        }
         try {
             if (!tcb.getSocket().isConnected()) {
-                Log.d(TAG, "socket not connected: " + tcb.getID());
+                if (DEBUG) {
+                    Log.d(TAG, "socket not connected: " + tcb.getID());
+                }
                 k.interestOps(0);
                 return;
             }
             ip.clear();
             ip.position(IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.TCPHeader.DEFAULT_LENGTH);
             int n = tcb.getSocket().read(ip);
-            Log.d(TAG, "socket read returned " + n);
+            if (DEBUG) {
+                Log.d(TAG, "socket read returned " + n);
+            }
             if (n <= 0) {
-                Log.d(TAG, "socket closed from the remote end");
+                if (DEBUG) {
+                    Log.d(TAG, "socket closed from the remote end");
+                }
                 k.interestOps(0);
                 if (tcb.getStatus() == TCB.CLOSE_WAIT) {
-                    Log.d(TAG, "half-duplex connection shutdown");
+                    if (DEBUG) {
+                        Log.d(TAG, "half-duplex connection shutdown");
+                    }
 //                    tcb.setStatus(TCB.LAST_ACK);
                     processIPIn(mIPOutBuffer, tcb.getID(), 0, tcb, IPUtils.TCPHeader.TCP_FLAG_FIN);
                     tcb.advanceSeq(1); // FIN counts as byte
                     return;
                 }
-                Log.d(TAG, "full-duplex connection shutdown");
+                if (DEBUG) {
+                    Log.d(TAG, "full-duplex connection shutdown");
+                }
                 tcb.setStatus(TCB.CLOSE_WAIT_2);
                 processIPIn(mIPOutBuffer, tcb.getID(), 0, tcb, IPUtils.TCPHeader.TCP_FLAG_FIN | IPUtils.TCPHeader.TCP_FLAG_ACK);
                 tcb.advanceSeq(1); // FIN counts as byte
                 return;
             }
             ip.flip();
-            IPUtils.hexdump("READ FROM TCP SOCKET: ", ip);
+            if (DEBUG) {
+                Log.d(TAG, IPUtils.hexdump("READ FROM TCP SOCKET: ", ip));
+            }
 
             ip.clear();
             processIPIn(ip, tcb.getID(), n, tcb, IPUtils.TCPHeader.TCP_FLAG_PSH | IPUtils.TCPHeader.TCP_FLAG_ACK);
@@ -1,10 +1,11 @@
 package trikita.capture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
-public class TCB {
+public class TCB extends Flow {
 
     public static final int SYN_SENT = 0;
     public static final int SYN_RECEIVED = 1;
@@ -12,24 +13,57 @@ public class TCB {
     public static final int CLOSE_WAIT = 3;
     public static final int LAST_ACK = 4;
     public static final int CLOSE_WAIT_2 = 5;
+    // Not bound to a connection, waiting in the pool
+    public static final int CLOSED = 6;
 
-    private final IPUtils.SocketID mID;
-    private final SocketChannel mSocket;
+    private SocketChannel mSocket;
     private int mLocalSeq;
     private int mLocalAck;
     private int mRemoteSeq;
     private int mRemoteAck;
 
-    private int mStatus = SYN_SENT;
+    private int mStatus = CLOSED;
+    private int mConnectState = ConnectQueue.STATE_NONE;
+    private long mConnectTime;
     private SelectionKey mSelectionKey;
 
-    public TCB(IPUtils.SocketID id, SocketChannel socket, int localSeq, int remoteSeq, int localAck, int remoteAck) {
-        mID = id;
+    private ServerNameParser mNameParser;
+    private boolean mInspected;
+    private String mServerName;
+
+    // TCBs are recycled by TCBPool, a new one starts CLOSED and becomes a connection in init()
+    TCB() {
+        super(new IPUtils.SocketID());
+    }
+
+    void init(IPUtils.SocketID id, SocketChannel socket, int localSeq, int remoteSeq, int localAck, int remoteAck) {
+        if (mStatus != CLOSED) {
+            IPUtils.panic("TCB is still in use: " + mID);
+        }
+        mID.set(id);
         mSocket = socket;
         mLocalSeq = localSeq;
         mLocalAck = localAck;
         mRemoteSeq = remoteSeq;
         mRemoteAck = remoteAck;
+        mStatus = SYN_SENT;
+    }
+
+    // Drops all connection state, keeps the ID until the next init() and the parser buffer for reuse
+    void recycle() {
+        mSocket = null;
+        mSelectionKey = null;
+        mStatus = CLOSED;
+        mConnectState = ConnectQueue.STATE_NONE;
+        mInspected = false;
+        mServerName = null;
+        setHostname(null);
+        setUid(UIDResolver.UID_UNKNOWN);
+        resetCapture(true);
+        setRecord(-1);
+        if (mNameParser != null) {
+            mNameParser.reset();
+        }
     }
 
     public int getRemoteAck() { return mRemoteAck; }
@@ -37,13 +71,27 @@ public class TCB {
     public int getLocalAck() { return mLocalAck; }
     public int getLocalSeq() { return mLocalSeq; }
     public int getStatus() { return mStatus; }
-    public IPUtils.SocketID getID() { return mID; }
     public SocketChannel getSocket() { return mSocket; }
+    public String getServerName() { return mServerName; }
+    public boolean isInspected() { return mInspected; }
+
+    // Where the connect is in ConnectQueue, and since when
+    int getConnectState() { return mConnectState; }
+    long getConnectTime() { return mConnectTime; }
+
+    void setConnectState(int state, long now) {
+        mConnectState = state;
+        mConnectTime = now;
+    }
+
+    // Connections start without a socket while their connect waits in ConnectQueue
+    public void setSocket(SocketChannel socket) {
+        mSocket = socket;
+    }
 
     public void closeSocket() {
         if (mSocket != null) {
             try {
-                System.out.println("really, close socket");
                 mSocket.close();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -51,6 +99,17 @@ public class TCB {
         }
     }
 
+    // Looks for TLS SNI or HTTP Host in the outbound payload until the flow gets its label
+    public void inspectPayload(ByteBuffer data) {
+        if (mNameParser == null) {
+            mNameParser = new ServerNameParser();
+        }
+        if (mNameParser.feed(data) == ServerNameParser.DONE) {
+            mServerName = mNameParser.getServerName();
+            mInspected = true;
+        }
+    }
+
     public void advanceSeq(int n) {
         mLocalSeq += n;
     }
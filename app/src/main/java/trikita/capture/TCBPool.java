@@ -0,0 +1,56 @@
+package trikita.capture;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// Recycles TCBs and their per-connection buffers, owned by the VPN thread (not thread-safe).
+// Each live or pooled TCB is accounted in the memory budget.
+public class TCBPool {
+
+    // Rough footprint of a TCB with its SNI parser buffer
+    private static final int TCB_SIZE = ServerNameParser.MAX_BUFFER_SIZE + 512;
+
+    private final int mMaxPooled;
+    private final MemoryBudget mBudget;
+    private final ArrayDeque<TCB> mFree = new ArrayDeque<>();
+    private long mCreated;
+    private long mReused;
+
+    public TCBPool(int maxPooled, MemoryBudget budget) {
+        mMaxPooled = maxPooled;
+        mBudget = budget;
+    }
+
+    // Returns null if the memory budget does not allow one more connection
+    public TCB acquire(IPUtils.SocketID id, SocketChannel socket, int localSeq, int remoteSeq, int localAck, int remoteAck) {
+        TCB tcb = mFree.poll();
+        if (tcb == null) {
+            if (!mBudget.reserve(TCB_SIZE)) {
+                return null;
+            }
+            tcb = new TCB();
+            mCreated++;
+        } else {
+            mReused++;
+        }
+        tcb.init(id, socket, localSeq, remoteSeq, localAck, remoteAck);
+        return tcb;
+    }
+
+    public void release(TCB tcb) {
+        if (tcb.getStatus() == TCB.CLOSED) {
+            IPUtils.panic("TCB released twice: " + tcb.getID());
+            return;
+        }
+        tcb.recycle();
+        if (mFree.size() < mMaxPooled && mBudget.getLevel() == MemoryBudget.LEVEL_NORMAL) {
+            mFree.push(tcb);
+        } else {
+            mBudget.release(TCB_SIZE);
+        }
+    }
+
+    public long getCreated() { return mCreated; }
+    public long getReused() { return mReused; }
+    public int getPooledCount() { return mFree.size(); }
+}
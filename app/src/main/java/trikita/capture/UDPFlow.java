@@ -0,0 +1,27 @@
+package trikita.capture;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+
+public class UDPFlow extends Flow {
+
+    private final DatagramChannel mSocket;
+    private long mLastActive;
+
+    public UDPFlow(IPUtils.SocketID id, DatagramChannel socket) {
+        super(id);
+        mSocket = socket;
+    }
+
+    public DatagramChannel getSocket() { return mSocket; }
+    public long getLastActive() { return mLastActive; }
+    public void setLastActive(long now) { mLastActive = now; }
+
+    public void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
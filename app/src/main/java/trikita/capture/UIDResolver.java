@@ -0,0 +1,344 @@
+package trikita.capture;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+// Maps a flow 4-tuple to the UID of the owning app using /proc/net/{tcp,tcp6,udp,udp6}.
+// A scan loads all sockets of a protocol into a table, later flows are looked up there and a new
+// scan happens only on a miss, at most once per RESCAN_INTERVAL. Flows that miss while the scan is
+// rate limited are kept and resolved together by the next scan in resolvePending().
+// Owned by the VPN thread (not thread-safe).
+public class UIDResolver {
+
+    private static final String TAG = "UIDResolver";
+
+    public static final int UID_UNKNOWN = -1;
+
+    private static final long RESCAN_INTERVAL = 250;
+    private static final int CAPACITY = 8192; // Power of two, at most half of it is used
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING = 256;
+
+    private static final String[] TCP_TABLES = {"/proc/net/tcp", "/proc/net/tcp6"};
+    private static final String[] UDP_TABLES = {"/proc/net/udp", "/proc/net/udp6"};
+
+    private static final boolean LITTLE_ENDIAN = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+    private final Table mTCP = new Table();
+    private final Table mUDP = new Table();
+
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private int mPos;
+
+    private long mHits;
+    private long mMisses;
+    private long mScans;
+    private long mLate;
+
+    // Returns the UID owning the app side (src) of the flow, or UID_UNKNOWN if the flow has to wait
+    // for the next scan
+    public int resolve(int proto, Flow flow, long now) {
+        Table table = (proto == IPUtils.PROTO_TCP ? mTCP : mUDP);
+        int uid = lookup(table, proto, flow.getID());
+        if (uid != UID_UNKNOWN) {
+            mHits++;
+            return uid;
+        }
+        mMisses++;
+        if (now - table.mLastScan < RESCAN_INTERVAL) {
+            if (table.mPendingCount == 0) {
+                table.mPendingGeneration = table.mCurrent;
+            }
+            if (table.mPendingCount < MAX_PENDING) {
+                table.mPending[table.mPendingCount++] = flow;
+            }
+            return UID_UNKNOWN;
+        }
+        rescan(table, proto, now);
+        return lookup(table, proto, flow.getID());
+    }
+
+    public boolean hasPending() {
+        return mTCP.mPendingCount > 0 || mUDP.mPendingCount > 0;
+    }
+
+    // Resolves the flows that missed during the rate limit once the next scan is allowed, and
+    // updates their records. A TCB closed in the meantime has no record and gets its UID again
+    // when it is reused, so stale entries are harmless.
+    public void resolvePending(long now, FlowTable flows) {
+        resolvePending(mTCP, IPUtils.PROTO_TCP, now, flows);
+        resolvePending(mUDP, IPUtils.PROTO_UDP, now, flows);
+    }
+
+    public long getHits() { return mHits; }
+    public long getMisses() { return mMisses; }
+    public long getScans() { return mScans; }
+    // Flows resolved after creation by a batched scan
+    public long getLate() { return mLate; }
+
+    private void resolvePending(Table table, int proto, long now, FlowTable flows) {
+        if (table.mPendingCount == 0) {
+            return;
+        }
+        // A scan triggered by resolve() since the flows were queued is as good as a new one
+        if (table.mCurrent == table.mPendingGeneration) {
+            if (now - table.mLastScan < RESCAN_INTERVAL) {
+                return;
+            }
+            rescan(table, proto, now);
+        }
+        for (int i = 0; i < table.mPendingCount; i++) {
+            Flow flow = table.mPending[i];
+            table.mPending[i] = null;
+            if (flow.getUid() != UID_UNKNOWN) {
+                continue;
+            }
+            int uid = lookup(table, proto, flow.getID());
+            if (uid != UID_UNKNOWN) {
+                mLate++;
+                flow.setUid(uid);
+                flows.setUid(flow.getRecord(), uid);
+            }
+        }
+        table.mPendingCount = 0;
+    }
+
+    private void rescan(Table table, int proto, long now) {
+        table.mLastScan = now;
+        table.clear();
+        scan(table, proto == IPUtils.PROTO_TCP ? TCP_TABLES : UDP_TABLES);
+    }
+
+    private static int lookup(Table table, int proto, IPUtils.SocketID id) {
+        int uid = table.find(id.srcAddr(), id.srcPort(), id.dstAddr(), id.dstPort());
+        if (uid == UID_UNKNOWN && proto == IPUtils.PROTO_UDP) {
+            // Unconnected UDP sockets, bound to the VPN address or to any address
+            uid = table.find(id.srcAddr(), id.srcPort(), 0, 0);
+            if (uid == UID_UNKNOWN) {
+                uid = table.find(0, id.srcPort(), 0, 0);
+            }
+        }
+        return uid;
+    }
+
+    // Open addressing table of the sockets seen by the last scan. Slots are valid only if they
+    // carry the current generation, so clearing the table is just a generation bump.
+    private static class Table {
+        private final int[] mLocalAddr = new int[CAPACITY];
+        private final int[] mLocalPort = new int[CAPACITY];
+        private final int[] mRemoteAddr = new int[CAPACITY];
+        private final int[] mRemotePort = new int[CAPACITY];
+        private final int[] mUid = new int[CAPACITY];
+        private final int[] mGeneration = new int[CAPACITY];
+        private int mCurrent = 1;
+        private int mCount;
+        private long mLastScan = -RESCAN_INTERVAL;
+        private final Flow[] mPending = new Flow[MAX_PENDING];
+        private int mPendingCount;
+        private int mPendingGeneration;
+
+        void clear() {
+            mCurrent++;
+            mCount = 0;
+        }
+
+        int find(int localAddr, int localPort, int remoteAddr, int remotePort) {
+            for (int i = hash(localAddr, localPort, remoteAddr, remotePort); mGeneration[i] == mCurrent;
+                 i = (i + 1) & (CAPACITY - 1)) {
+                if (mLocalPort[i] == localPort && mLocalAddr[i] == localAddr
+                        && mRemotePort[i] == remotePort && mRemoteAddr[i] == remoteAddr) {
+                    return mUid[i];
+                }
+            }
+            return UID_UNKNOWN;
+        }
+
+        void insert(int localAddr, int localPort, int remoteAddr, int remotePort, int uid) {
+            if (mCount >= CAPACITY / 2) {
+                return;
+            }
+            int i = hash(localAddr, localPort, remoteAddr, remotePort);
+            while (mGeneration[i] == mCurrent) {
+                if (mLocalPort[i] == localPort && mLocalAddr[i] == localAddr
+                        && mRemotePort[i] == remotePort && mRemoteAddr[i] == remoteAddr) {
+                    mUid[i] = uid;
+                    return;
+                }
+                i = (i + 1) & (CAPACITY - 1);
+            }
+            mLocalAddr[i] = localAddr;
+            mLocalPort[i] = localPort;
+            mRemoteAddr[i] = remoteAddr;
+            mRemotePort[i] = remotePort;
+            mUid[i] = uid;
+            mGeneration[i] = mCurrent;
+            mCount++;
+        }
+
+        private static int hash(int localAddr, int localPort, int remoteAddr, int remotePort) {
+            int h = localAddr;
+            h = 31 * h + localPort;
+            h = 31 * h + remoteAddr;
+            h = 31 * h + remotePort;
+            return (h ^ (h >>> 16)) & (CAPACITY - 1);
+        }
+    }
+
+    private void scan(Table table, String[] tables) {
+        mScans++;
+        for (String path : tables) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(path);
+                parse(in, table, path.endsWith("6"));
+            } catch (IOException e) {
+                Log.d(TAG, "failed to read " + path + ": " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try { in.close(); } catch (IOException ignore) { ignore.printStackTrace(); }
+                }
+            }
+        }
+    }
+
+    // Reads the table line by line through the reusable buffer, a partial line is moved to the front
+    private void parse(FileInputStream in, Table table, boolean v6) throws IOException {
+        byte[] b = mReadBuffer;
+        int end = 0;
+        boolean header = true;
+        int n;
+        while ((n = in.read(b, end, b.length - end)) > 0) {
+            end = end + n;
+            int start = 0;
+            for (int i = start; i < end; i++) {
+                if (b[i] == '\n') {
+                    if (header) {
+                        header = false;
+                    } else {
+                        parseLine(b, start, i, table, v6);
+                    }
+                    start = i + 1;
+                }
+            }
+            System.arraycopy(b, start, b, 0, end - start);
+            end = end - start;
+            if (end == b.length) {
+                end = 0; // Line too long, skip it
+            }
+        }
+    }
+
+    // "sl local_address rem_address st ... retrnsmt uid ..."
+    private void parseLine(byte[] b, int start, int end, Table table, boolean v6) {
+        mPos = start;
+        if (!skipField(b, end)) { // sl
+            return;
+        }
+        int localAddr = parseAddress(b, end, v6);
+        int localPort = parseHex(b, end);
+        if (localAddr == -1 || localPort < 0) {
+            return;
+        }
+        int remoteAddr = parseAddress(b, end, v6);
+        int remotePort = parseHex(b, end);
+        if (remoteAddr == -1 || remotePort < 0) {
+            return;
+        }
+        // st, tx_queue:rx_queue, tr:tm->when, retrnsmt
+        for (int i = 0; i < 4; i++) {
+            if (!skipField(b, end)) {
+                return;
+            }
+        }
+        int uid = parseDecimal(b, end);
+        if (uid >= 0) {
+            table.insert(localAddr, localPort, remoteAddr, remotePort, uid);
+        }
+    }
+
+    private boolean skipField(byte[] b, int end) {
+        while (mPos < end && b[mPos] == ' ') mPos++;
+        int from = mPos;
+        while (mPos < end && b[mPos] != ' ') mPos++;
+        return mPos > from;
+    }
+
+    // Parses an address followed by ':', returns the IPv4 address in network order, 0 for the
+    // unspecified address, or -1 for IPv6 addresses that are not IPv4-mapped (and on errors)
+    private int parseAddress(byte[] b, int end, boolean v6) {
+        while (mPos < end && b[mPos] == ' ') mPos++;
+        int words = (v6 ? 4 : 1);
+        int addr = 0;
+        boolean unspecified = true;
+        for (int w = 0; w < words; w++) {
+            if (mPos + 8 > end) {
+                return -1;
+            }
+            int v = 0;
+            for (int i = 0; i < 8; i++) {
+                int d = hexDigit(b[mPos++]);
+                if (d < 0) {
+                    return -1;
+                }
+                v = (v << 4) | d;
+            }
+            // Words are printed in host byte order
+            if (LITTLE_ENDIAN) {
+                v = Integer.reverseBytes(v);
+            }
+            if (v6 && w < 3) {
+                unspecified = unspecified && v == 0;
+                if ((w < 2 && v != 0) || (w == 2 && v != 0 && v != 0x0000ffff)) {
+                    return -1;
+                }
+            } else {
+                addr = v;
+            }
+        }
+        if (v6 && unspecified && addr != 0) {
+            return -1; // IPv4-compatible addresses are not used
+        }
+        if (mPos >= end || b[mPos] != ':') {
+            return -1;
+        }
+        mPos++;
+        return addr;
+    }
+
+    private int parseHex(byte[] b, int end) {
+        int v = 0;
+        int from = mPos;
+        while (mPos < end && b[mPos] != ' ') {
+            int d = hexDigit(b[mPos++]);
+            if (d < 0) {
+                return -1;
+            }
+            v = (v << 4) | d;
+        }
+        return (mPos > from ? v : -1);
+    }
+
+    private int parseDecimal(byte[] b, int end) {
+        while (mPos < end && b[mPos] == ' ') mPos++;
+        int v = 0;
+        int from = mPos;
+        while (mPos < end && b[mPos] >= '0' && b[mPos] <= '9') {
+            v = v * 10 + (b[mPos++] - '0');
+        }
+        return (mPos > from ? v : -1);
+    }
+
+    private static int hexDigit(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
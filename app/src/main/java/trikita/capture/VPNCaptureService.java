@@ -4,13 +4,30 @@ import android.content.Intent;
 import android.net.VpnService;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 public class VPNCaptureService extends VpnService {
     private static final String TAG = "VPNCaptureService";
     public static final String START_VPN_ACTION = "trikita.capture.START_VPN";
     public static final String STOP_VPN_ACTION = "trikita.capture.STOP_VPN";
 
+    public static final String EXTRA_SNAP_LENGTH = "trikita.capture.SNAP_LENGTH";
+    public static final String EXTRA_FLOW_BYTE_BUDGET = "trikita.capture.FLOW_BYTE_BUDGET";
+    public static final String EXTRA_SAMPLE_RATE = "trikita.capture.SAMPLE_RATE";
+    public static final String EXTRA_COMPRESS = "trikita.capture.COMPRESS";
+    // Datagrams read from a ready UDP socket per select round, 1 to SocketManager.MAX_UDP_DRAIN_BUDGET
+    public static final String EXTRA_UDP_DRAIN_BUDGET = "trikita.capture.UDP_DRAIN_BUDGET";
+    // IPFIX collector as "host:port", flow records are not exported if missing
+    public static final String EXTRA_COLLECTOR = "trikita.capture.COLLECTOR";
+    // Local TCP port for live pcapng streaming, 0 disables it
+    public static final String EXTRA_LIVE_PORT = "trikita.capture.LIVE_PORT";
+    public static final String EXTRA_LIVE_DISCONNECT_SLOW = "trikita.capture.LIVE_DISCONNECT_SLOW";
+
+    private static final String CAPTURE_FILE = "capture.pcap";
+    private static final String COMPRESSED_CAPTURE_FILE = "capture.pcapz";
+
     private VPNThread mVpnThread;
 
     @Override
@@ -29,11 +46,18 @@ public class VPNCaptureService extends VpnService {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
         if (intent.getAction() == START_VPN_ACTION) {
+            boolean compress = intent.getBooleanExtra(EXTRA_COMPRESS, true);
             try {
                 mVpnThread = new VPNThread(new Builder()
                         .addRoute("0.0.0.0", 0)
                         .addAddress("1.1.1.1", 32)
-                        .establish(), this);
+                        .establish(), this, captureFile(compress), capturePolicy(intent),
+                        intent.getIntExtra(EXTRA_UDP_DRAIN_BUDGET, SocketManager.DEFAULT_UDP_DRAIN_BUDGET),
+                        compress,
+                        intent.getIntExtra(EXTRA_LIVE_PORT, 0),
+                        intent.getBooleanExtra(EXTRA_LIVE_DISCONNECT_SLOW, false) ?
+                                LiveExport.POLICY_DISCONNECT : LiveExport.POLICY_DROP_OLDEST,
+                        collector(intent));
                 mVpnThread.start();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -43,4 +67,27 @@ public class VPNCaptureService extends VpnService {
         }
         return START_STICKY;
     }
+
+    private File captureFile(boolean compress) {
+        File dir = getExternalFilesDir(null);
+        return new File(dir != null ? dir : getFilesDir(), compress ? COMPRESSED_CAPTURE_FILE : CAPTURE_FILE);
+    }
+
+    private InetSocketAddress collector(Intent intent) {
+        String collector = intent.getStringExtra(EXTRA_COLLECTOR);
+        if (collector == null) {
+            return null;
+        }
+        InetSocketAddress address = FlowExporter.parseCollector(collector);
+        if (address == null) {
+            Log.d(TAG, "invalid flow collector, flow export is disabled: " + collector);
+        }
+        return address;
+    }
+
+    private CapturePolicy capturePolicy(Intent intent) {
+        return new CapturePolicy(intent.getIntExtra(EXTRA_SNAP_LENGTH, 0),
+                intent.getIntExtra(EXTRA_FLOW_BYTE_BUDGET, 0),
+                intent.getIntExtra(EXTRA_SAMPLE_RATE, 1));
+    }
 }
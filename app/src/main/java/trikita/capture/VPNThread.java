@@ -3,29 +3,41 @@ package trikita.capture;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
-public class VPNThread extends Thread {
+public class VPNThread extends Thread implements SocketManager.Tunnel {
     private static final String TAG = "VPNThread";
 
     private final FileChannel mVpnIn;
     private final FileChannel mVpnOut;
+    private final MemoryBudget mMemoryBudget;
+    private final PacketCapture mCapture;
+    private final LiveExport mLiveExport;
+    private final FlowExporter mExporter;
     private final SocketManager mSocketManager;
     private final VpnService mVPNService;
     private ParcelFileDescriptor mVpnFileDescriptor;
 
-    public VPNThread(ParcelFileDescriptor fd, VPNCaptureService svc) throws IOException {
+    public VPNThread(ParcelFileDescriptor fd, VPNCaptureService svc, File captureFile, CapturePolicy policy,
+                     int udpDrainBudget, boolean compress, int livePort, int livePolicy,
+                     InetSocketAddress collector) throws IOException {
         mVpnFileDescriptor = fd;
         mVpnIn = new FileInputStream(mVpnFileDescriptor.getFileDescriptor()).getChannel();
         mVpnOut = new FileOutputStream(mVpnFileDescriptor.getFileDescriptor()).getChannel();
-        mSocketManager = new SocketManager(this);
+        mMemoryBudget = new MemoryBudget(MemoryBudget.DEFAULT_LIMIT);
+        mCapture = (captureFile != null ? new PacketCapture(captureFile, mMemoryBudget, compress) : null);
+        mLiveExport = (livePort > 0 ? new LiveExport(livePort, livePolicy, mMemoryBudget) : null);
         mVPNService = svc;
+        mExporter = (collector != null ? new FlowExporter(collector, this) : null);
+        mSocketManager = new SocketManager(this, mMemoryBudget, policy, udpDrainBudget, mCapture, mLiveExport, mExporter);
     }
 
     @Override
@@ -44,6 +56,16 @@ public class VPNThread extends Thread {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            if (mCapture != null) {
+                mCapture.close();
+            }
+            if (mLiveExport != null) {
+                mLiveExport.close();
+            }
+            if (mExporter != null) {
+                mSocketManager.exportOpenFlows();
+                mExporter.close();
+            }
             try {
                 mVpnFileDescriptor.close();
             } catch (IOException e) {
@@ -52,14 +74,25 @@ public class VPNThread extends Thread {
         }
     }
 
+    public MemoryBudget getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    public FlowTable getFlowTable() {
+        return mSocketManager.getFlowTable();
+    }
+
+    @Override
     public void protect(Socket channel) {
         mVPNService.protect(channel);
     }
 
+    @Override
     public void protect(DatagramSocket channel) {
         mVPNService.protect(channel);
     }
 
+    @Override
     public void write(ByteBuffer ip) {
         try {
             mVpnOut.write(ip);
@@ -70,4 +103,12 @@ public class VPNThread extends Thread {
             IPUtils.panic("exception in write to VPN fd" + e.getMessage());
         }
     }
+
+    // TUN device expects one packet per write, so a batch is a sequence of writes with no select in between
+    @Override
+    public void write(ByteBuffer[] batch, int count) {
+        for (int i = 0; i < count; i++) {
+            write(batch[i]);
+        }
+    }
 }
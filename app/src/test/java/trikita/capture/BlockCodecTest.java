@@ -0,0 +1,196 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class BlockCodecTest {
+
+    // Recorded pcap for the throughput run: ./gradlew test -Dtrikita.capture.pcap=<file>
+    private static final String PCAP_PROPERTY = "trikita.capture.pcap";
+    private static final int ROUNDS = 3;
+
+    private final BlockCodec mCodec = new BlockCodec();
+
+    @After
+    public void tearDown() {
+        mCodec.close();
+    }
+
+    @Test
+    public void roundTripsCompressibleBlock() throws IOException {
+        byte[] raw = new byte[PacketCapture.BLOCK_SIZE];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (i % 64);
+        }
+        int n = mCodec.encode(raw, raw.length);
+        assertEquals(BlockCodec.DEFLATE, mCodec.getFrame()[0]);
+        assertEquals(n, BlockCodec.frameLength(mCodec.getFrame(), 0));
+        assertArrayEquals(raw, decode(mCodec.getFrame(), raw.length));
+    }
+
+    @Test
+    public void storesIncompressibleBlock() throws IOException {
+        byte[] raw = new byte[10000];
+        new Random(1).nextBytes(raw);
+        int n = mCodec.encode(raw, raw.length);
+        assertEquals(BlockCodec.STORED, mCodec.getFrame()[0]);
+        assertEquals(BlockCodec.FRAME_HEADER_LENGTH + raw.length, n);
+        assertArrayEquals(raw, decode(mCodec.getFrame(), raw.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedBlock() throws IOException {
+        byte[] raw = new byte[1000];
+        int n = mCodec.encode(raw, raw.length);
+        byte[] frame = Arrays.copyOf(mCodec.getFrame(), n);
+        frame[12] ^= 1; // CRC
+        mCodec.decode(frame, 0, new byte[raw.length]);
+    }
+
+    @Test
+    public void rejectsInvalidHeaderFields() throws IOException {
+        byte[] raw = new byte[1000];
+        int n = mCodec.encode(raw, raw.length);
+        byte[] frame = Arrays.copyOf(mCodec.getFrame(), n);
+        assertRejected(frame, 4, -1);             // Negative raw length
+        assertRejected(frame, 4, raw.length + 1); // Raw length beyond the block
+        assertRejected(frame, 8, -1);             // Negative data length
+        assertRejected(frame, 8, n);              // Data beyond the frame
+        assertRejected(Arrays.copyOf(frame, BlockCodec.FRAME_HEADER_LENGTH - 1), 4, raw.length);
+
+        raw = new byte[100];
+        new Random(1).nextBytes(raw);
+        n = mCodec.encode(raw, raw.length);
+        assertEquals(BlockCodec.STORED, mCodec.getFrame()[0]);
+        assertRejected(Arrays.copyOf(mCodec.getFrame(), n), 8, raw.length - 1);
+    }
+
+    @Test
+    public void failsOnlyWithIOExceptionOnDamagedFrames() {
+        byte[] raw = new byte[4000];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (i % 100);
+        }
+        byte[] valid = Arrays.copyOf(mCodec.getFrame(), mCodec.encode(raw, raw.length));
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            byte[] frame = Arrays.copyOf(valid, random.nextInt(valid.length + 1));
+            if (frame.length > 0) {
+                frame[random.nextInt(Math.min(frame.length, BlockCodec.FRAME_HEADER_LENGTH + 8))] =
+                        (byte) random.nextInt(256);
+            }
+            try {
+                mCodec.decode(frame, 0, raw);
+            } catch (IOException e) {
+                // Expected for nearly every damaged frame
+            }
+        }
+    }
+
+    private void assertRejected(byte[] frame, int field, int value) {
+        byte[] f = frame.clone();
+        ByteBuffer.wrap(f).putInt(field, value);
+        try {
+            mCodec.decode(f, 0, new byte[1000]);
+            fail("decoded a frame with " + value + " at " + field);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    // Encodes and decodes a recorded capture cut into blocks the way PacketCapture does, prints
+    // the throughput in MB of raw data per second and the compressed size
+    @Test
+    public void throughputOnRecordedCapture() throws IOException {
+        String path = System.getProperty(PCAP_PROPERTY, "");
+        assumeTrue(!path.isEmpty());
+        List<byte[]> blocks = readBlocks(new File(path));
+        long total = 0;
+        for (byte[] b : blocks) {
+            total += b.length;
+        }
+        byte[] raw = new byte[PacketCapture.BLOCK_SIZE];
+        List<byte[]> frames = new ArrayList<>();
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        long stored = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            frames.clear();
+            stored = 0;
+            long start = System.nanoTime();
+            for (byte[] b : blocks) {
+                int n = mCodec.encode(b, b.length);
+                frames.add(Arrays.copyOf(mCodec.getFrame(), n));
+                stored += n;
+            }
+            long encoded = System.nanoTime();
+            for (byte[] f : frames) {
+                mCodec.decode(f, 0, raw);
+            }
+            long decoded = System.nanoTime();
+            // Round 0 warms up the JIT
+            if (round > 0) {
+                encodeNanos = Math.min(encodeNanos, encoded - start);
+                decodeNanos = Math.min(decodeNanos, decoded - encoded);
+            }
+        }
+        System.out.printf("BlockCodec: %d blocks, %d bytes -> %d bytes (%.1f%%), encode %.1f MB/s, "
+                        + "decode %.1f MB/s%n", blocks.size(), total, stored, stored * 100.0 / total,
+                total * 1e3 / encodeNanos, total * 1e3 / decodeNanos);
+    }
+
+    private byte[] decode(byte[] frame, int length) throws IOException {
+        byte[] raw = new byte[length];
+        assertEquals(length, mCodec.decode(frame, 0, raw));
+        return raw;
+    }
+
+    // Cuts the pcap byte stream into blocks of at most BLOCK_SIZE on record boundaries
+    private static List<byte[]> readBlocks(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer b = ByteBuffer.wrap(data);
+        List<byte[]> blocks = new ArrayList<>();
+        int start = 0;
+        int p = 24;
+        while (p + 16 <= data.length) {
+            int next = p + 16 + b.getInt(p + 8);
+            if (next > data.length) {
+                break;
+            }
+            if (next - start > PacketCapture.BLOCK_SIZE) {
+                blocks.add(Arrays.copyOfRange(data, start, p));
+                start = p;
+            }
+            p = next;
+        }
+        blocks.add(Arrays.copyOfRange(data, start, p));
+        return blocks;
+    }
+}
@@ -0,0 +1,138 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureIndexTest {
+
+    private static final int PHONE = 0x0a000001;
+    private static final int SERVER = 0x08080808;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("capture", ".pcap");
+    }
+
+    @After
+    public void tearDown() {
+        CaptureIndexWriter.indexFile(mFile).delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void findsFlowsSpilledAcrossSections() throws IOException {
+        // More flows than the writer keeps in memory, so the index has several flows sections
+        int flows = 20000;
+        PacketCapture capture = new PacketCapture(mFile, new MemoryBudget(MemoryBudget.DEFAULT_LIMIT), true);
+        ByteBuffer ip = ByteBuffer.allocate(28);
+        for (int i = 0; i < flows * 2; i++) {
+            int flow = i % flows;
+            boolean in = (i >= flows);
+            udp(ip, in ? SERVER : PHONE, in ? 53 : 1024 + flow, in ? PHONE : SERVER, in ? 1024 + flow : 53);
+            capture.capture(ip, 0, ip.limit(), ip.limit(), 1000 + i);
+            if (i % 1000 == 0) {
+                // 1000 records fit in one block, so the next free block is always there
+                capture.drain();
+            }
+        }
+        capture.close();
+        assertEquals(0, capture.getDropped());
+
+        CaptureIndex index = new CaptureIndex(mFile);
+        try {
+            int[] out = new int[64];
+            int n = index.findFlowBlocks(SERVER, 53, PHONE, 1024 + 7, IPUtils.PROTO_UDP, out);
+            assertEquals(2, n);
+            assertTrue(out[0] < out[1]);
+            assertEquals(1, index.findBlocks(1000 + 7, 1000 + 7, new int[4]));
+            assertEquals(0, index.findFlowBlocks(SERVER, 53, PHONE, 1, IPUtils.PROTO_UDP, out));
+            // Both packets of the flow are in the blocks found for it
+            assertEquals(2, countPackets(index, out, n, 1024 + 7));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void keepsEmptyBlocksInTimeOrder() throws IOException {
+        CaptureIndexWriter writer = new CaptureIndexWriter(CaptureIndexWriter.indexFile(mFile));
+        ByteBuffer ip = ByteBuffer.allocate(28);
+        udp(ip, PHONE, 1024, SERVER, 53);
+        writer.addBlock(new byte[24], 24, 0, 24); // Only the pcap header
+        writer.addBlock(records(ip, 5000, 6000), 2 * 44, 24, 2 * 44);
+        writer.addBlock(new byte[0], 0, 112, 0);
+        writer.addBlock(records(ip, 7000, 8000), 2 * 44, 112, 2 * 44);
+        writer.close();
+
+        CaptureIndex index = new CaptureIndex(mFile);
+        try {
+            assertEquals(4, index.getBlockCount());
+            assertEquals(0, index.getBlockPackets(2));
+            assertEquals(6000, index.getBlockStart(2));
+            int[] out = new int[4];
+            assertEquals(1, index.findBlocks(7500, 9000, out));
+            assertEquals(3, out[0]);
+            assertEquals(2, index.findBlocks(0, 10000, out));
+            assertEquals(2, index.findFlowBlocks(SERVER, 53, PHONE, 1024, IPUtils.PROTO_UDP, out));
+
+            // Results that do not fit are counted, not stored
+            int[] one = new int[1];
+            assertEquals(2, index.findBlocks(0, 10000, one));
+            assertEquals(1, one[0]);
+            assertEquals(2, index.findFlowBlocks(SERVER, 53, PHONE, 1024, IPUtils.PROTO_UDP, one));
+            assertEquals(1, one[0]);
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void udp(ByteBuffer ip, int src, int srcPort, int dst, int dstPort) {
+        ip.clear();
+        ip.put(0, (byte) 0x45);
+        ip.put(9, (byte) IPUtils.PROTO_UDP);
+        ip.putInt(12, src);
+        ip.putInt(16, dst);
+        ip.putShort(20, (short) srcPort);
+        ip.putShort(22, (short) dstPort);
+    }
+
+    // Two pcap records of the packet at the given times
+    private static byte[] records(ByteBuffer ip, long ms1, long ms2) {
+        ByteBuffer b = ByteBuffer.allocate(2 * (16 + ip.limit()));
+        for (long ms : new long[]{ms1, ms2}) {
+            b.putInt((int) (ms / 1000));
+            b.putInt((int) (ms % 1000) * 1000);
+            b.putInt(ip.limit());
+            b.putInt(ip.limit());
+            b.put(ip.array(), 0, ip.limit());
+        }
+        return b.array();
+    }
+
+    private static int countPackets(CaptureIndex index, int[] blocks, int n, int port) throws IOException {
+        int packets = 0;
+        for (int i = 0; i < n; i++) {
+            ByteBuffer b = index.readBlock(blocks[i]);
+            int p = (blocks[i] == 0 ? 24 : 0);
+            while (p + 16 <= b.limit()) {
+                int caplen = b.getInt(p + 8);
+                int ip = p + 16;
+                if ((b.getShort(ip + 20) & 0xffff) == port || (b.getShort(ip + 22) & 0xffff) == port) {
+                    packets++;
+                }
+                p = ip + caplen;
+            }
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,99 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectQueueTest {
+
+    private static final int DST_A = 0x08080808;
+    private static final int DST_B = 0x01010101;
+
+    private final ConnectQueue mQueue = new ConnectQueue();
+    private int mPort = 40000;
+
+    @Test
+    public void limitsConnectsPerDestination() {
+        TCB[] a = new TCB[ConnectQueue.MAX_PER_DESTINATION + 1];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = offer(DST_A, 0);
+        }
+        TCB b = offer(DST_B, 0);
+        for (int i = 0; i < ConnectQueue.MAX_PER_DESTINATION; i++) {
+            assertSame(a[i], mQueue.next(5));
+        }
+        // The last connect to A waits, the one to B behind it goes first
+        assertSame(b, mQueue.next(5));
+        assertNull(mQueue.next(5));
+        assertEquals(1, mQueue.getPendingCount());
+        assertEquals(ConnectQueue.MAX_PER_DESTINATION + 1, mQueue.getInFlightCount());
+    }
+
+    @Test
+    public void promotesInOrderWhenConnectsComplete() {
+        TCB[] a = new TCB[ConnectQueue.MAX_PER_DESTINATION + 2];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = offer(DST_A, 0);
+        }
+        for (int i = 0; i < ConnectQueue.MAX_PER_DESTINATION; i++) {
+            mQueue.next(0);
+        }
+        assertNull(mQueue.next(0));
+
+        mQueue.connected(a[2], 3);
+        assertSame(a[ConnectQueue.MAX_PER_DESTINATION], mQueue.next(10));
+        assertNull(mQueue.next(10));
+        // A failed connect frees its slot too
+        mQueue.cancel(a[0]);
+        assertSame(a[ConnectQueue.MAX_PER_DESTINATION + 1], mQueue.next(20));
+        assertEquals(1, mQueue.getConnected());
+        assertEquals(1, mQueue.getFailed());
+
+        // Waits of 0, 10 and 20 ms, connect time of 3 ms
+        ConnectQueue.Histogram wait = mQueue.getQueueWait();
+        assertEquals(ConnectQueue.MAX_PER_DESTINATION, wait.getCount(0));
+        assertEquals(1, wait.getCount(4));
+        assertEquals(1, wait.getCount(5));
+        assertEquals(1, mQueue.getConnectTime().getCount(2));
+        assertEquals(4, mQueue.getConnectTime().percentile(0.5));
+    }
+
+    @Test
+    public void cancelsQueuedConnect() {
+        TCB first = offer(DST_A, 0);
+        TCB second = offer(DST_B, 0);
+        mQueue.cancel(first);
+        assertEquals(ConnectQueue.STATE_NONE, first.getConnectState());
+        assertEquals(1, mQueue.getPendingCount());
+        assertSame(second, mQueue.next(0));
+        assertNull(mQueue.next(0));
+        assertEquals(1, mQueue.getInFlightCount());
+        // Not counted as a failed connect, it never started
+        assertEquals(0, mQueue.getFailed());
+    }
+
+    @Test
+    public void refusesWhenFull() {
+        for (int i = 0; i < ConnectQueue.MAX_PENDING; i++) {
+            assertTrue(mQueue.offer(tcb(DST_A + i), 0));
+        }
+        assertTrue(mQueue.isFull());
+        assertFalse(mQueue.offer(tcb(DST_B), 0));
+    }
+
+    private TCB offer(int dst, long now) {
+        TCB tcb = tcb(dst);
+        assertTrue(mQueue.offer(tcb, now));
+        return tcb;
+    }
+
+    private TCB tcb(int dst) {
+        TCB tcb = new TCB();
+        tcb.init(new IPUtils.SocketID().set(0x0a000002, mPort++, dst, 443), null, 0, 0, 0, 0);
+        return tcb;
+    }
+}
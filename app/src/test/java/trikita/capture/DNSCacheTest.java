@@ -0,0 +1,117 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DNSCacheTest {
+
+    // Responses are parsed where SocketManager reads them, after the IP and UDP headers
+    private static final int OFFSET = IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH;
+    private static final int ADDR = 0x5db8d822;
+    private static final int ADDR2 = 0x5db8d823;
+
+    private final DNSCache mCache = new DNSCache(64);
+
+    @Test
+    public void cachesAAnswersAndSkipsAAAA() {
+        ByteBuffer b = response(question("Example.COM"), aaaa(), a(ADDR, 300));
+        assertEquals(1, mCache.parseResponse(b, OFFSET, b.limit() - OFFSET, 1000));
+        assertEquals(0, b.position());
+        assertEquals("example.com", mCache.lookup(ADDR, 1000));
+        assertNull(mCache.lookup(ADDR, 1000 + 300 * 1000));
+    }
+
+    @Test
+    public void ignoresCompressionPointerLoop() {
+        // The question name points at itself
+        ByteBuffer b = response(new byte[]{(byte) 0xc0, 12, 0, 1, 0, 1}, a(ADDR, 300));
+        assertEquals(0, mCache.parseResponse(b, OFFSET, b.limit() - OFFSET, 0));
+        assertNull(mCache.lookup(ADDR, 0));
+    }
+
+    @Test
+    public void ignoresOutOfBoundsPointer() {
+        ByteBuffer b = response(new byte[]{3, 'f', 'o', 'o', (byte) 0xc0, (byte) 0xff, 0, 1, 0, 1}, a(ADDR, 300));
+        assertEquals(0, mCache.parseResponse(b, OFFSET, b.limit() - OFFSET, 0));
+        b = response(new byte[]{(byte) 0xff, (byte) 0xff, 0, 1, 0, 1}, a(ADDR, 300));
+        assertEquals(0, mCache.parseResponse(b, OFFSET, b.limit() - OFFSET, 0));
+        assertNull(mCache.lookup(ADDR, 0));
+    }
+
+    @Test
+    public void keepsRecordsBeforeTruncation() {
+        ByteBuffer b = response(question("example.com"), a(ADDR, 300), a(ADDR2, 300));
+        // Cut in the middle of the second record's address
+        assertEquals(1, mCache.parseResponse(b, OFFSET, b.limit() - OFFSET - 2, 0));
+        assertEquals("example.com", mCache.lookup(ADDR, 0));
+        assertNull(mCache.lookup(ADDR2, 0));
+        // Cut in the middle of the first record's fixed fields
+        DNSCache cache = new DNSCache(64);
+        assertEquals(0, cache.parseResponse(b, OFFSET, b.limit() - OFFSET - 16 - 6, 0));
+        assertNull(cache.lookup(ADDR, 0));
+    }
+
+    @Test
+    public void ignoresLengthsOutsideBuffer() {
+        ByteBuffer b = response(question("example.com"), a(ADDR, 300));
+        assertEquals(0, mCache.parseResponse(b, OFFSET, b.limit(), 0));
+        assertEquals(0, mCache.parseResponse(b, -1, b.limit(), 0));
+        assertEquals(0, mCache.parseResponse(b, OFFSET, 4, 0));
+    }
+
+    @Test
+    public void survivesCorruptedResponses() {
+        byte[] valid = response(question("www.example.com"), aaaa(), a(ADDR, 300), a(ADDR2, 60)).array();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            byte[] b = valid.clone();
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                b[OFFSET + random.nextInt(b.length - OFFSET)] = (byte) random.nextInt(256);
+            }
+            // Must not throw, whatever it finds
+            mCache.parseResponse(ByteBuffer.wrap(b), OFFSET, random.nextInt(b.length - OFFSET + 1), 0);
+        }
+    }
+
+    private static byte[] question(String name) {
+        ByteBuffer b = ByteBuffer.allocate(name.length() + 2 + 4);
+        for (String label : name.split("\\.")) {
+            b.put((byte) label.length()).put(label.getBytes());
+        }
+        b.put((byte) 0).putShort((short) 1).putShort((short) 1);
+        return b.array();
+    }
+
+    // Answer records use a pointer to the question name
+    private static byte[] a(int addr, int ttl) {
+        return ByteBuffer.allocate(16).putShort((short) 0xc00c).putShort((short) 1).putShort((short) 1)
+            .putInt(ttl).putShort((short) 4).putInt(addr).array();
+    }
+
+    private static byte[] aaaa() {
+        return ByteBuffer.allocate(28).putShort((short) 0xc00c).putShort((short) 28).putShort((short) 1)
+            .putInt(300).putShort((short) 16).put(new byte[16]).array();
+    }
+
+    private static ByteBuffer response(byte[] question, byte[]... answers) {
+        int length = OFFSET + 12 + question.length;
+        for (byte[] answer : answers) {
+            length += answer.length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.position(OFFSET);
+        b.putShort((short) 0x1234).putShort((short) 0x8180).putShort((short) 1)
+            .putShort((short) answers.length).putShort((short) 0).putShort((short) 0);
+        b.put(question);
+        for (byte[] answer : answers) {
+            b.put(answer);
+        }
+        b.clear();
+        return b;
+    }
+}
@@ -0,0 +1,200 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Exports to a local DatagramSocket standing in for the collector and checks the IPFIX framing
+public class FlowExporterTest {
+
+    private static final int RECORD_LENGTH = 46;
+
+    private static final FlowExporter.SocketProtector NO_PROTECT = new FlowExporter.SocketProtector() {
+        @Override
+        public void protect(DatagramSocket socket) {
+        }
+    };
+
+    private DatagramSocket mCollector;
+    private FlowExporter mExporter;
+    private final FlowTable mTable = new FlowTable(256);
+
+    @Before
+    public void setUp() throws IOException {
+        mCollector = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mCollector.setSoTimeout(3000);
+        mExporter = new FlowExporter(InetSocketAddress.createUnresolved("127.0.0.1", mCollector.getLocalPort()),
+                NO_PROTECT);
+    }
+
+    @After
+    public void tearDown() {
+        mExporter.close();
+        mCollector.close();
+    }
+
+    @Test
+    public void parsesCollector() {
+        assertEquals(FlowExporter.DEFAULT_PORT, FlowExporter.parseCollector("10.0.0.1").getPort());
+        assertEquals(2055, FlowExporter.parseCollector("10.0.0.1:2055").getPort());
+        assertEquals("10.0.0.1", FlowExporter.parseCollector("10.0.0.1:2055").getHostString());
+        assertNull(FlowExporter.parseCollector("10.0.0.1:abc"));
+        assertNull(FlowExporter.parseCollector("10.0.0.1:70000"));
+        assertNull(FlowExporter.parseCollector(":4739"));
+    }
+
+    @Test
+    public void batchesRecordsIntoFullMessages() throws IOException {
+        // 40 flows with traffic both ways are 80 records: two full messages and a partial one
+        for (int i = 0; i < 40; i++) {
+            exportFlow(i, FlowTable.CLOSE_FIN);
+        }
+        List<ByteBuffer> messages = receive(3);
+        int records = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            ByteBuffer m = messages.get(i);
+            assertEquals(10, m.getShort(0));
+            assertEquals(m.limit(), m.getShort(2) & 0xffff);
+            assertEquals(records, m.getInt(8));
+            assertTrue(m.limit() <= 1472);
+            records += checkSets(m, i == 0);
+        }
+        assertEquals(80, records);
+        // Only the last message is partial
+        assertTrue(messages.get(0).limit() > 1472 - RECORD_LENGTH);
+        assertTrue(messages.get(1).limit() > 1472 - RECORD_LENGTH);
+    }
+
+    @Test
+    public void sendsPartialMessageAfterQuietPeriod() throws IOException {
+        exportFlow(0, FlowTable.CLOSE_FIN);
+        exportFlow(1, FlowTable.CLOSE_RST);
+        exportFlow(2, FlowTable.CLOSE_IDLE);
+        List<ByteBuffer> messages = receive(1);
+        assertEquals(6, checkSets(messages.get(0), true));
+
+        ByteBuffer m = messages.get(0);
+        int record = 16 + 48 + 4;
+        assertEquals(0x0a000001, m.getInt(record));
+        assertEquals(0x08080800, m.getInt(record + 4));
+        assertEquals(40000, m.getShort(record + 8) & 0xffff);
+        assertEquals(443, m.getShort(record + 10) & 0xffff);
+        assertEquals(IPUtils.PROTO_TCP, m.get(record + 12));
+        assertEquals(100, m.getLong(record + 13));
+        assertEquals(1, m.getLong(record + 21));
+        assertEquals(1000, m.getLong(record + 29));
+        assertEquals(1002, m.getLong(record + 37));
+        assertEquals(FlowExporter.END_OF_FLOW, m.get(record + 45));
+        // Reverse direction of the same flow
+        assertEquals(0x08080800, m.getInt(record + RECORD_LENGTH));
+        assertEquals(3000, m.getLong(record + RECORD_LENGTH + 13));
+    }
+
+    @Test
+    public void exportsDeltasOnActiveTimeout() throws IOException {
+        UDPFlow flow = new UDPFlow(new IPUtils.SocketID().set(0x0a000001, 40000, 0x08080808, 53), null);
+        int slot = mTable.open(flow, IPUtils.PROTO_UDP, 1000);
+        mTable.countOut(slot, 60, 1000);
+        mExporter.export(mTable, slot, FlowExporter.END_ACTIVE_TIMEOUT, 1000);
+        mTable.countOut(slot, 70, 2000);
+        mTable.countOut(slot, 80, 2001);
+        mExporter.export(mTable, slot, FlowExporter.END_IDLE_TIMEOUT, 2001);
+        ByteBuffer m = receive(1).get(0);
+        assertEquals(2, checkSets(m, true));
+        int record = 16 + 48 + 4;
+        assertEquals(60, m.getLong(record + 13));
+        assertEquals(FlowExporter.END_ACTIVE_TIMEOUT, m.get(record + 45));
+        assertEquals(150, m.getLong(record + RECORD_LENGTH + 13));
+        assertEquals(2, m.getLong(record + RECORD_LENGTH + 21));
+        assertEquals(1000, m.getLong(record + RECORD_LENGTH + 29));
+    }
+
+    @Test
+    public void disablesExportForUnknownCollector() throws InterruptedException {
+        FlowExporter exporter = new FlowExporter(InetSocketAddress.createUnresolved("collector.invalid",
+                FlowExporter.DEFAULT_PORT), NO_PROTECT);
+        try {
+            for (int i = 0; i < 100 && exporter.isEnabled(); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(exporter.isEnabled());
+            UDPFlow flow = new UDPFlow(new IPUtils.SocketID().set(0x0a000001, 40000, 0x08080808, 53), null);
+            int slot = mTable.open(flow, IPUtils.PROTO_UDP, 1000);
+            mTable.countOut(slot, 60, 1000);
+            exporter.export(mTable, slot, FlowExporter.END_IDLE_TIMEOUT, 1000);
+            assertEquals(0, exporter.getExported());
+            assertEquals(0, exporter.getDropped());
+        } finally {
+            exporter.close();
+        }
+    }
+
+    private void exportFlow(int i, int closeReason) {
+        UDPFlow flow = new UDPFlow(new IPUtils.SocketID().set(0x0a000001, 40000 + i, 0x08080800 + i, 443), null);
+        int slot = mTable.open(flow, IPUtils.PROTO_TCP, 1000);
+        mTable.countOut(slot, 100, 1000);
+        mTable.countIn(slot, 1500, 1001);
+        mTable.countIn(slot, 1500, 1002);
+        mTable.close(slot, closeReason, 1002);
+        mExporter.export(mTable, slot, FlowExporter.endReason(closeReason), 1002);
+    }
+
+    // Checks the template set (if expected) and the data set, returns the number of data records
+    private static int checkSets(ByteBuffer m, boolean template) {
+        int pos = 16;
+        if (template) {
+            assertEquals(2, m.getShort(pos));
+            assertEquals(48, m.getShort(pos + 2));
+            assertEquals(256, m.getShort(pos + 4));
+            assertEquals(10, m.getShort(pos + 6));
+            int[] fields = {8, 4, 12, 4, 7, 2, 11, 2, 4, 1, 1, 8, 2, 8, 152, 8, 153, 8, 136, 1};
+            int length = 0;
+            for (int i = 0; i < fields.length; i++) {
+                assertEquals(fields[i], m.getShort(pos + 8 + i * 2));
+                if (i % 2 == 1) {
+                    length += fields[i];
+                }
+            }
+            assertEquals(RECORD_LENGTH, length);
+            pos += 48;
+        }
+        assertEquals(256, m.getShort(pos));
+        int length = m.getShort(pos + 2) & 0xffff;
+        assertEquals(m.limit(), pos + length);
+        assertEquals(0, (length - 4) % RECORD_LENGTH);
+        return (length - 4) / RECORD_LENGTH;
+    }
+
+    private List<ByteBuffer> receive(int count) throws IOException {
+        List<ByteBuffer> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DatagramPacket p = new DatagramPacket(new byte[2048], 2048);
+            mCollector.receive(p);
+            messages.add(ByteBuffer.wrap(p.getData(), 0, p.getLength()).slice());
+        }
+        // Nothing else is sent
+        mCollector.setSoTimeout(200);
+        try {
+            mCollector.receive(new DatagramPacket(new byte[2048], 2048));
+            throw new AssertionError("unexpected message");
+        } catch (SocketTimeoutException expected) {
+            // Expected
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,136 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlowTableTest {
+
+    private static final int PHONE = 0x0a000002;
+
+    private final FlowTable mTable = new FlowTable(16);
+
+    @Test
+    public void reusesOldestClosedSlot() {
+        FlowTable table = new FlowTable(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, table.open(flow(0x01010101, 443, null), IPUtils.PROTO_TCP, 0));
+        }
+        assertEquals(-1, table.open(flow(0x01010101, 443, null), IPUtils.PROTO_TCP, 0));
+        assertEquals(1, table.getDropped());
+
+        table.close(2, FlowTable.CLOSE_FIN, 10);
+        table.close(0, FlowTable.CLOSE_RST, 20);
+        table.close(0, FlowTable.CLOSE_IDLE, 30); // Already closed, ignored
+        assertFalse(table.isOpen(2));
+        assertEquals(2, table.open(flow(0x02020202, 80, null), IPUtils.PROTO_TCP, 40));
+        assertTrue(table.isOpen(2));
+        assertEquals(0x02020202, table.getRemoteAddr(2));
+        assertEquals(0, table.getPacketsOut(2));
+        assertEquals(FlowTable.CLOSE_NONE, table.getCloseReason(2));
+        assertEquals(0, table.open(flow(0x02020202, 80, null), IPUtils.PROTO_TCP, 40));
+        assertEquals(-1, table.open(flow(0x02020202, 80, null), IPUtils.PROTO_TCP, 40));
+    }
+
+    @Test
+    public void groupsTalkersByRemoteAddress() throws InterruptedException {
+        addFlows();
+        List<FlowTable.Talker> talkers = topTalkers(FlowTable.GROUP_REMOTE_ADDR, 10, 0);
+        assertEquals(3, talkers.size());
+        assertTalker("1.1.1.1", 1130, 4, 2, talkers.get(0));
+        assertTalker("2.2.2.2", 500, 1, 1, talkers.get(1));
+        assertTalker("8.8.8.8", 260, 2, 1, talkers.get(2));
+    }
+
+    @Test
+    public void groupsTalkersByRemotePort() throws InterruptedException {
+        addFlows();
+        List<FlowTable.Talker> talkers = topTalkers(FlowTable.GROUP_REMOTE_PORT, 10, 0);
+        assertEquals(3, talkers.size());
+        assertTalker("tcp/443", 1600, 3, 2, talkers.get(0));
+        assertTalker("udp/53", 260, 2, 1, talkers.get(1));
+        assertTalker("tcp/80", 30, 2, 1, talkers.get(2));
+    }
+
+    @Test
+    public void groupsTalkersByHostname() throws InterruptedException {
+        addFlows();
+        List<FlowTable.Talker> talkers = topTalkers(FlowTable.GROUP_HOSTNAME, 10, 0);
+        assertEquals(3, talkers.size());
+        assertTalker("a.example", 1600, 3, 2, talkers.get(0));
+        // Flows without a hostname fall back to the address
+        assertTalker("8.8.8.8", 260, 2, 1, talkers.get(1));
+        assertTalker("1.1.1.1", 30, 2, 1, talkers.get(2));
+    }
+
+    @Test
+    public void limitsTalkersByCountAndTime() throws InterruptedException {
+        addFlows();
+        List<FlowTable.Talker> talkers = topTalkers(FlowTable.GROUP_REMOTE_PORT, 1, 0);
+        assertEquals(1, talkers.size());
+        assertEquals("tcp/443", talkers.get(0).key);
+        // The tcp/80 flow was last active before 1000
+        talkers = topTalkers(FlowTable.GROUP_REMOTE_PORT, 10, 1000);
+        assertEquals(2, talkers.size());
+        assertEquals("udp/53", talkers.get(1).key);
+    }
+
+    // Two flows to a.example on different addresses, one DNS flow and one flow without a hostname
+    private void addFlows() {
+        int slot = mTable.open(flow(0x01010101, 443, "a.example"), IPUtils.PROTO_TCP, 100);
+        mTable.countOut(slot, 100, 1500);
+        mTable.countIn(slot, 1000, 2000);
+        mTable.close(slot, FlowTable.CLOSE_FIN, 2000);
+        slot = mTable.open(flow(0x02020202, 443, "a.example"), IPUtils.PROTO_TCP, 100);
+        mTable.countOut(slot, 500, 2000);
+        slot = mTable.open(flow(0x08080808, 53, null), IPUtils.PROTO_UDP, 100);
+        mTable.countOut(slot, 60, 1500);
+        mTable.countIn(slot, 200, 2000);
+        slot = mTable.open(flow(0x01010101, 80, null), IPUtils.PROTO_TCP, 100);
+        mTable.countOut(slot, 10, 200);
+        mTable.countIn(slot, 20, 500);
+    }
+
+    // Queries from another thread while this one publishes, as the VPN thread does
+    private List<FlowTable.Talker> topTalkers(final int groupBy, final int n, final long sinceMs)
+            throws InterruptedException {
+        final List<List<FlowTable.Talker>> result = new ArrayList<>();
+        Thread query = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.add(mTable.topTalkers(groupBy, n, sinceMs, 5000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        query.start();
+        while (query.isAlive()) {
+            mTable.publish();
+            Thread.yield();
+        }
+        assertEquals(1, result.size());
+        assertNotNull(result.get(0));
+        return result.get(0);
+    }
+
+    private static void assertTalker(String key, long bytes, long packets, int flows, FlowTable.Talker t) {
+        assertEquals(key, t.key);
+        assertEquals(bytes, t.bytes);
+        assertEquals(packets, t.packets);
+        assertEquals(flows, t.flows);
+    }
+
+    private static Flow flow(int addr, int port, String hostname) {
+        Flow flow = new UDPFlow(new IPUtils.SocketID().set(PHONE, 40000, addr, port), null);
+        flow.setHostname(hostname);
+        return flow;
+    }
+}
@@ -0,0 +1,131 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IPReassemblerTest {
+
+    private static final int SRC = 0x0a000002;
+    private static final int DST = 0x08080808;
+    private static final int ID = 0x1234;
+    private static final int SIZE = 64;
+
+    private final IPReassembler mReassembler =
+        new IPReassembler(new BufferPool(IPUtils.MAX_DATAGRAM_SIZE, 4, new MemoryBudget(1024 * 1024)));
+    private final byte[] mPayload = new byte[SIZE];
+
+    public IPReassemblerTest() {
+        for (int i = 0; i < SIZE; i++) {
+            mPayload[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void reassemblesOutOfOrderFragments() {
+        assertNull(offer(24, 48, true, 0));
+        assertNull(offer(0, 24, true, 0));
+        assertComplete(offer(48, SIZE, false, 0));
+    }
+
+    @Test
+    public void reassemblesWhenLastFragmentArrivesFirst() {
+        assertNull(offer(48, SIZE, false, 0));
+        assertNull(offer(0, 24, true, 0));
+        assertTrue(mReassembler.hasPending());
+        assertComplete(offer(24, 48, true, 0));
+    }
+
+    @Test
+    public void keepsFirstDataOfOverlappingFragments() {
+        byte[] expected = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            expected[i] = (i >= 8 && i < 40 ? mPayload[i] : (byte) 0xff);
+        }
+        assertNull(offer(8, 40, true, 0));
+        // Later fragments overlap [8, 40) with different bytes, only the holes are taken from them
+        for (int i = 0; i < SIZE; i++) {
+            mPayload[i] = (byte) 0xff;
+        }
+        assertNull(offer(0, 48, true, 0));
+        assertNull(offer(8, 40, true, 0));
+        ByteBuffer ip = offer(40, SIZE, false, 0);
+        assertNotNull(ip);
+        assertArrayEquals(expected, payload(ip));
+        assertEquals(1, mReassembler.getReassembled());
+    }
+
+    @Test
+    public void evictsIncompleteDatagramsOnTimeout() {
+        assertNull(offer(0, 24, true, 0));
+        mReassembler.expire(29 * 1000);
+        assertTrue(mReassembler.hasPending());
+        mReassembler.expire(30 * 1000);
+        assertFalse(mReassembler.hasPending());
+        assertEquals(1, mReassembler.getTimedOut());
+        assertEquals(0, mReassembler.getDropped());
+        // The rest of the datagram starts a new one that never completes
+        assertNull(offer(24, SIZE, false, 30 * 1000));
+        assertEquals(0, mReassembler.getReassembled());
+    }
+
+    @Test
+    public void dropsFragmentsWithInconsistentLength() {
+        assertNull(offer(48, SIZE, false, 0));
+        assertNull(offer(48, SIZE - 8, false, 0));
+        assertFalse(mReassembler.hasPending());
+        assertEquals(1, mReassembler.getDropped());
+        assertEquals(0, mReassembler.getTimedOut());
+    }
+
+    private void assertComplete(ByteBuffer ip) {
+        assertNotNull(ip);
+        assertEquals(0, ip.position());
+        assertEquals(IPUtils.IPHeader.DEFAULT_LENGTH + SIZE, ip.limit());
+        IPUtils.IPHeader header = IPUtils.IPHeader.parse(ip, null);
+        assertEquals(IPUtils.IPHeader.DEFAULT_LENGTH + SIZE, header.length);
+        assertFalse(IPReassembler.isFragment(header));
+        assertEquals(ID, header.id);
+        // The header checksum is valid when the sum of all header words folds to 0xffff
+        int sum = 0;
+        for (int i = 0; i < header.headerLength; i += 2) {
+            sum += ip.getShort(i) & 0xffff;
+        }
+        while ((sum >> 16) > 0) {
+            sum = (sum & 0xffff) + (sum >> 16);
+        }
+        assertEquals(0xffff, sum);
+        assertArrayEquals(mPayload, payload(ip));
+        assertEquals(1, mReassembler.getReassembled());
+        assertEquals(0, mReassembler.getDropped());
+        assertFalse(mReassembler.hasPending());
+    }
+
+    private static byte[] payload(ByteBuffer ip) {
+        byte[] b = new byte[ip.limit() - IPUtils.IPHeader.DEFAULT_LENGTH];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = ip.get(IPUtils.IPHeader.DEFAULT_LENGTH + i);
+        }
+        return b;
+    }
+
+    // Sends the payload bytes [start, end) as a fragment of datagram ID
+    private ByteBuffer offer(int start, int end, boolean more, long now) {
+        ByteBuffer ip = ByteBuffer.allocate(IPUtils.IPHeader.DEFAULT_LENGTH + end - start);
+        IPUtils.IPHeader.fill(ip, SRC, DST, IPUtils.PROTO_UDP, end - start);
+        ip.put(mPayload, start, end - start);
+        ip.putShort(4, (short) ID);
+        ip.putShort(6, (short) ((more ? IPUtils.IPHeader.FLAG_MF << 13 : 0) | start / 8));
+        IPUtils.IPHeader.updateChecksum(ip, IPUtils.IPHeader.DEFAULT_LENGTH);
+        ip.flip();
+        IPUtils.IPHeader header = IPUtils.IPHeader.parse(ip, null);
+        return mReassembler.offer(ip, header, now);
+    }
+}
@@ -0,0 +1,143 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Connects local clients that stop reading, so the export queues fill up
+public class LiveExportTest {
+
+    private static final int PACKET_LENGTH = 1000;
+    private static final int HEADER_LENGTH = 28 + 20;
+    private static final int MAX_PACKETS = 1000000;
+
+    private final MemoryBudget mBudget = new MemoryBudget(MemoryBudget.DEFAULT_LIMIT);
+    private final ByteBuffer mPacket = ByteBuffer.allocate(PACKET_LENGTH);
+    private LiveExport mExport;
+    private Socket mClient;
+    private int mPort;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        mPort = s.getLocalPort();
+        s.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mClient != null) {
+            mClient.close();
+        }
+        if (mExport != null) {
+            mExport.close();
+        }
+    }
+
+    @Test
+    public void dropsOldestPacketsOnOverflow() throws Exception {
+        mExport = new LiveExport(mPort, LiveExport.POLICY_DROP_OLDEST, mBudget);
+        connect();
+        int sent = 0;
+        while (mExport.getDropped() == 0) {
+            offer(sent++);
+            assertTrue(sent < MAX_PACKETS);
+        }
+        // The queue is full, newer packets now push out the oldest ones
+        for (int i = 0; i < 1000; i++) {
+            offer(sent++);
+        }
+        long dropped = mExport.getDropped();
+
+        DataInputStream in = new DataInputStream(mClient.getInputStream());
+        byte[] header = new byte[HEADER_LENGTH];
+        in.readFully(header);
+        assertEquals(0x0a0d0d0a, ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+        int received = 0;
+        int last = -1;
+        while (last != sent - 1) {
+            int id = readPacket(in);
+            assertTrue("packet " + id + " after " + last, id > last);
+            last = id;
+            received++;
+        }
+        // The newest packets are all there, only older ones are missing
+        assertEquals(sent, received + dropped);
+
+        mExport.close();
+        assertEquals(0, mBudget.getUsed());
+    }
+
+    @Test
+    public void releasesBudgetWhenClientDisconnects() throws Exception {
+        mExport = new LiveExport(mPort, LiveExport.POLICY_DROP_OLDEST, mBudget);
+        connect();
+        assertTrue(mBudget.getUsed() > 0);
+        mClient.close();
+        // The export thread notices the closed client when a write fails
+        for (int i = 0; i < 100 && mExport.hasClients(); i++) {
+            offer(i);
+            Thread.sleep(100);
+        }
+        assertFalse(mExport.hasClients());
+        assertEquals(0, mBudget.getUsed());
+    }
+
+    @Test
+    public void disconnectsSlowConsumer() throws Exception {
+        mExport = new LiveExport(mPort, LiveExport.POLICY_DISCONNECT, mBudget);
+        connect();
+        for (int i = 0; mExport.hasClients(); i++) {
+            offer(i);
+            assertTrue(i < MAX_PACKETS);
+            if (mExport.getDropped() > 0) {
+                Thread.sleep(10); // Waits for the export thread to remove the client
+            }
+        }
+        assertTrue(mExport.getDropped() > 0);
+        assertEquals(0, mBudget.getUsed());
+    }
+
+    // Connects with a small receive buffer and waits until the export thread has accepted
+    private void connect() throws InterruptedException, IOException {
+        mClient = new Socket();
+        mClient.setReceiveBufferSize(4096);
+        mClient.setSoTimeout(5000);
+        mClient.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+        for (int i = 0; i < 100 && !mExport.hasClients(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(mExport.hasClients());
+    }
+
+    // Packets carry their number in the first 4 bytes
+    private void offer(int id) {
+        mPacket.putInt(0, id);
+        mExport.offer(mPacket, 0, PACKET_LENGTH, PACKET_LENGTH, id);
+    }
+
+    // Reads one enhanced packet block and returns the packet number
+    private static int readPacket(DataInputStream in) throws IOException {
+        byte[] b = new byte[8];
+        in.readFully(b);
+        ByteBuffer header = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(6, header.getInt(0));
+        byte[] block = new byte[header.getInt(4) - 8];
+        in.readFully(block);
+        assertEquals(PACKET_LENGTH, ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN).getInt(12));
+        return ByteBuffer.wrap(block).getInt(20);
+    }
+}
@@ -0,0 +1,39 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryBudgetTest {
+
+    // Limit 1000, high watermark 700, low watermark 400: one 100 byte band per level above 700
+    private final MemoryBudget mBudget = new MemoryBudget(1000, 700, 400);
+
+    @Test
+    public void capturesUntilDropLevel() {
+        assertTrue(mBudget.reserve(700));
+        assertEquals(MemoryBudget.LEVEL_SHRINK_WINDOW, mBudget.getLevel());
+        assertTrue(mBudget.reserveLowPriority(100));
+        assertEquals(MemoryBudget.LEVEL_DEFER_SYN, mBudget.getLevel());
+        assertTrue(mBudget.reserveLowPriority(100));
+        assertEquals(MemoryBudget.LEVEL_DROP_CAPTURE, mBudget.getLevel());
+        assertFalse(mBudget.reserveLowPriority(10));
+        assertTrue(mBudget.reserve(100));
+        assertFalse(mBudget.reserve(200));
+        assertEquals(2, mBudget.getRejected());
+    }
+
+    @Test
+    public void returnsToNormalBelowLowWatermark() {
+        assertTrue(mBudget.reserve(950));
+        assertEquals(MemoryBudget.LEVEL_DROP_CAPTURE, mBudget.getLevel());
+        mBudget.release(500);
+        assertEquals(MemoryBudget.LEVEL_DROP_CAPTURE, mBudget.getLevel());
+        mBudget.release(100);
+        assertEquals(MemoryBudget.LEVEL_NORMAL, mBudget.getLevel());
+        assertTrue(mBudget.reserveLowPriority(100));
+        assertEquals(950, mBudget.getPeak());
+    }
+}
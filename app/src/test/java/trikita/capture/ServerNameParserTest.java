@@ -0,0 +1,80 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServerNameParserTest {
+
+    private final ServerNameParser mParser = new ServerNameParser();
+
+    @Test
+    public void findsHostInOneSegment() {
+        assertEquals(ServerNameParser.DONE, feed("GET / HTTP/1.1\r\nHost: Example.com:8080\r\n\r\n"));
+        assertEquals("example.com", mParser.getServerName());
+    }
+
+    @Test
+    public void failsAtEndOfHeadersWithoutHost() {
+        assertEquals(ServerNameParser.DONE, feed("GET / HTTP/1.0\r\n\r\n"));
+        assertNull(mParser.getServerName());
+    }
+
+    @Test
+    public void findsHostAcrossSegments() {
+        assertEquals(ServerNameParser.NEED_MORE, feed("GET / HTTP/1.1\r\nHo"));
+        assertEquals(ServerNameParser.NEED_MORE, feed("st: example.com"));
+        assertEquals(ServerNameParser.DONE, feed("\r\nAccept: */*\r\n\r\n"));
+        assertEquals("example.com", mParser.getServerName());
+    }
+
+    @Test
+    public void failsAtEndOfHeadersAcrossSegments() {
+        assertEquals(ServerNameParser.NEED_MORE, feed("GET / HTTP/1.1\r\nAccept: */*\r\n"));
+        assertEquals(ServerNameParser.DONE, feed("\r\n"));
+        assertNull(mParser.getServerName());
+    }
+
+    @Test
+    public void findsServerNameInClientHello() {
+        byte[] hello = clientHello("example.org");
+        assertEquals(ServerNameParser.DONE, mParser.feed(ByteBuffer.wrap(hello)));
+        assertEquals("example.org", mParser.getServerName());
+
+        mParser.reset();
+        assertEquals(ServerNameParser.NEED_MORE, mParser.feed(ByteBuffer.wrap(hello, 0, 50)));
+        assertEquals(ServerNameParser.DONE, mParser.feed(ByteBuffer.wrap(hello, 50, hello.length - 50)));
+        assertEquals("example.org", mParser.getServerName());
+    }
+
+    @Test
+    public void ignoresOtherProtocols() {
+        assertEquals(ServerNameParser.DONE, feed("\u0000binary"));
+        assertNull(mParser.getServerName());
+    }
+
+    private int feed(String s) {
+        return mParser.feed(ByteBuffer.wrap(s.getBytes()));
+    }
+
+    // Minimal TLS 1.2 ClientHello with one cipher suite and the server_name extension only
+    private static byte[] clientHello(String name) {
+        byte[] host = name.getBytes();
+        int extLength = 4 + 5 + host.length;
+        int helloLength = 2 + 32 + 1 + 2 + 2 + 1 + 1 + 2 + extLength;
+        ByteBuffer b = ByteBuffer.allocate(5 + 4 + helloLength);
+        b.put((byte) 0x16).putShort((short) 0x0301).putShort((short) (4 + helloLength));
+        b.put((byte) 1).put((byte) 0).putShort((short) helloLength);
+        b.putShort((short) 0x0303).put(new byte[32]);
+        b.put((byte) 0); // Session ID
+        b.putShort((short) 2).putShort((short) 0xc02f); // Cipher suites
+        b.put((byte) 1).put((byte) 0); // Compression methods
+        b.putShort((short) extLength);
+        b.putShort((short) 0).putShort((short) (5 + host.length));
+        b.putShort((short) (3 + host.length)).put((byte) 0).putShort((short) host.length).put(host);
+        return b.array();
+    }
+}
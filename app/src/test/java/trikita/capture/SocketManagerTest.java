@@ -0,0 +1,360 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+// Runs the engine against loopback sockets, the TUN side is a TestTunnel that counts packets and,
+// for the benchmark, writes them to a file
+public class SocketManagerTest {
+
+    // Set to run the UDP burst benchmark: ./gradlew test -Dtrikita.capture.benchmark=true
+    private static final String BENCHMARK_PROPERTY = "trikita.capture.benchmark";
+    private static final int APP_ADDR = 0x0a000002;
+    private static final int APP_PORT = 5000;
+    private static final int BURST = 10000;
+    private static final int DATAGRAM_SIZE = 1200;
+    // Datagrams in flight when paced, below what the default receive buffer holds
+    private static final int PACED_WINDOW = 64;
+    private static final long IDLE_NANOS = 300 * 1000 * 1000L;
+    private static final int CHURN_WARMUP = 500;
+    private static final int CHURN_CONNECTIONS = 2000;
+    private static final int DATA_PACKETS = 10;
+    private static final int LONG_PACKETS = 100000;
+    private static final int SEGMENT_SIZE = 100;
+
+    private final TestTunnel mTunnel = new TestTunnel();
+    private final ByteBuffer mIP = ByteBuffer.allocate(IPUtils.MAX_DATAGRAM_SIZE);
+    private DatagramChannel mPeer;
+
+    @Before
+    public void setUp() throws IOException {
+        mPeer = DatagramChannel.open();
+        mPeer.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mPeer.close();
+    }
+
+    @Test
+    public void throttlesUDPReadsUnderMemoryPressure() throws IOException {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        SocketManager sm = new SocketManager(mTunnel, budget, CapturePolicy.FULL, 32, null, null, null);
+        SocketAddress app = openUDPFlow(sm);
+
+        // Leave less than one packet buffer
+        long reserved = budget.getLimit() - budget.getUsed() - 1000;
+        assertTrue(budget.reserve(reserved));
+        mPeer.send(ByteBuffer.allocate(100), app);
+        for (int i = 0; i < 10 && sm.getThrottledUDPCount() == 0; i++) {
+            sm.select(mIP);
+        }
+        assertEquals(1, sm.getThrottledUDPCount());
+        assertEquals(0, mTunnel.mPackets);
+
+        budget.release(reserved);
+        for (int i = 0; i < 10 && mTunnel.mPackets == 0; i++) {
+            sm.select(mIP);
+        }
+        assertEquals(0, sm.getThrottledUDPCount());
+        assertEquals(1, mTunnel.mPackets);
+        assertEquals(128, mTunnel.mBytes);
+    }
+
+    // Sends a 10k datagram burst to one flow for several drain budgets, paced so that nothing is
+    // dropped and unpaced so that the socket receive buffer overflows. Prints select rounds, time
+    // and delivered datagrams.
+    @Test
+    public void drainsUDPBurst() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        for (int window : new int[]{PACED_WINDOW, BURST}) {
+            for (int drainBudget : new int[]{1, 32, 64}) {
+                burst(drainBudget, window);
+            }
+        }
+    }
+
+    private void burst(int drainBudget, final int window) throws Exception {
+        // A file write per packet, like the TUN fd
+        File file = File.createTempFile("tun", null);
+        FileOutputStream out = new FileOutputStream(file);
+        TestTunnel tunnel = new TestTunnel();
+        tunnel.mOut = out.getChannel();
+        SocketManager sm = new SocketManager(tunnel, new MemoryBudget(MemoryBudget.DEFAULT_LIMIT),
+                CapturePolicy.FULL, drainBudget, null, null, null);
+        final SocketAddress app = openUDPFlow(sm);
+        tunnel.mPackets = 0;
+        final AtomicInteger delivered = new AtomicInteger();
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer payload = ByteBuffer.allocate(DATAGRAM_SIZE);
+                try {
+                    for (int i = 0; i < BURST; i++) {
+                        while (i - delivered.get() >= window) {
+                            Thread.yield();
+                        }
+                        payload.clear();
+                        mPeer.send(payload, app);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        long start = System.nanoTime();
+        long done = start;
+        long rounds = 0;
+        sender.start();
+        while (tunnel.mPackets < BURST && System.nanoTime() - done < IDLE_NANOS) {
+            sm.select(mIP);
+            rounds++;
+            if (tunnel.mPackets != delivered.get()) {
+                delivered.set(tunnel.mPackets);
+                done = System.nanoTime();
+            }
+        }
+        sender.join();
+        out.close();
+        file.delete();
+        System.out.printf("UDP burst: %s, drain budget %d: %d of %d delivered, %d select rounds "
+                        + "(%.1f datagrams/round), %.1f ms%n", window < BURST ? "paced" : "unpaced",
+                drainBudget, tunnel.mPackets, BURST, rounds, tunnel.mPackets / (double) rounds,
+                (done - start) / 1e6);
+    }
+
+    // Opens, uses and closes TCP connections to a loopback server one after another, the server
+    // closes each one after DATA_PACKETS segments. Prints time and heap allocated by the VPN side per
+    // connection, and per data segment on one long connection.
+    @Test
+    public void countsOnlyRemoteSegmentsAsInbound() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer b = ByteBuffer.allocate(DATA_PACKETS * SEGMENT_SIZE);
+                try {
+                    SocketChannel c = server.accept();
+                    while (b.hasRemaining() && c.read(b) >= 0) {
+                        // Reads the app's data, then closes without sending any
+                    }
+                    c.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        acceptor.start();
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        SocketManager sm = new SocketManager(mTunnel, new MemoryBudget(MemoryBudget.DEFAULT_LIMIT),
+                CapturePolicy.FULL, SocketManager.DEFAULT_UDP_DRAIN_BUDGET, null, null, null);
+        connection(sm, APP_PORT, port, DATA_PACKETS);
+        acceptor.join();
+        server.close();
+
+        FlowTable table = sm.getFlowTable();
+        assertFalse(table.isOpen(0));
+        // SYN, ACK, the data segments and FIN from the app
+        assertEquals(DATA_PACKETS + 3, table.getPacketsOut(0));
+        // SYN+ACK and FIN from the server, the ACKs made up for the app's segments are not inbound
+        assertEquals(2, table.getPacketsIn(0));
+        // Every segment still went to the TUN: SYN+ACK, one ACK per data segment, FIN, ACK of the app's FIN
+        assertEquals(DATA_PACKETS + 3, mTunnel.mPackets);
+    }
+
+    @Test
+    public void churnsTCPConnections() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        final AtomicInteger expected = new AtomicInteger();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (true) {
+                        SocketChannel c = server.accept();
+                        for (int n = 0; n < expected.get(); ) {
+                            b.clear();
+                            int r = c.read(b);
+                            if (r < 0) {
+                                break;
+                            }
+                            n += r;
+                        }
+                        c.close();
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            }
+        });
+        acceptor.start();
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        SocketManager sm = new SocketManager(mTunnel, new MemoryBudget(MemoryBudget.DEFAULT_LIMIT),
+                CapturePolicy.FULL, SocketManager.DEFAULT_UDP_DRAIN_BUDGET, null, null, null);
+
+        expected.set(DATA_PACKETS * SEGMENT_SIZE);
+        for (int i = 0; i < CHURN_WARMUP; i++) {
+            connection(sm, APP_PORT + i, port, DATA_PACKETS);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < CHURN_CONNECTIONS; i++) {
+            connection(sm, APP_PORT + CHURN_WARMUP + i, port, DATA_PACKETS);
+        }
+        long time = System.nanoTime() - start;
+        allocated = allocations.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("TCP churn: %d connections of %d segments, %.1f us and %d bytes allocated per "
+                        + "connection, TCBs created %d, reused %d%n", CHURN_CONNECTIONS, DATA_PACKETS,
+                time / 1e3 / CHURN_CONNECTIONS, allocated / CHURN_CONNECTIONS,
+                sm.getTCBPool().getCreated(), sm.getTCBPool().getReused());
+
+        expected.set(LONG_PACKETS * SEGMENT_SIZE);
+        long[] segment = new long[2];
+        connection(sm, APP_PORT - 1, port, LONG_PACKETS, allocations, segment);
+        System.out.printf("TCP segments: %d on one connection, %.2f us and %.1f bytes allocated per "
+                + "segment%n", LONG_PACKETS, segment[0] / 1e3 / LONG_PACKETS, segment[1] / (double) LONG_PACKETS);
+        server.close();
+        acceptor.join();
+    }
+
+    private void connection(SocketManager sm, int appPort, int port, int packets) throws IOException {
+        connection(sm, appPort, port, packets, null, null);
+    }
+
+    // Handshake, data segments, server close and the app's FIN. With allocations set, stores the time
+    // and allocated bytes of the data segments in segment[0] and segment[1].
+    private void connection(SocketManager sm, int appPort, int port, int packets,
+                            com.sun.management.ThreadMXBean allocations, long[] segment) throws IOException {
+        int seq = 1000;
+        sendTCP(sm, appPort, port, seq, 0, IPUtils.TCPHeader.TCP_FLAG_SYN, 0);
+        seq++;
+        while (mTunnel.mLastFlags != (IPUtils.TCPHeader.TCP_FLAG_SYN | IPUtils.TCPHeader.TCP_FLAG_ACK)) {
+            sm.select(mIP);
+        }
+        int ack = mTunnel.mLastSeq + 1;
+        sendTCP(sm, appPort, port, seq, ack, IPUtils.TCPHeader.TCP_FLAG_ACK, 0);
+        long thread = Thread.currentThread().getId();
+        long allocated = (allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            sendTCP(sm, appPort, port, seq, ack, IPUtils.TCPHeader.TCP_FLAG_ACK | IPUtils.TCPHeader.TCP_FLAG_PSH,
+                    SEGMENT_SIZE);
+            seq += SEGMENT_SIZE;
+        }
+        if (allocations != null) {
+            segment[0] = System.nanoTime() - start;
+            segment[1] = allocations.getThreadAllocatedBytes(thread) - allocated;
+        }
+        while ((mTunnel.mLastFlags & IPUtils.TCPHeader.TCP_FLAG_FIN) == 0) {
+            sm.select(mIP);
+        }
+        ack = mTunnel.mLastSeq + 1;
+        sendTCP(sm, appPort, port, seq, ack, IPUtils.TCPHeader.TCP_FLAG_FIN | IPUtils.TCPHeader.TCP_FLAG_ACK, 0);
+    }
+
+    private void sendTCP(SocketManager sm, int appPort, int port, int seq, int ack, int flags, int n) {
+        int headers = IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.TCPHeader.DEFAULT_LENGTH;
+        mIP.clear();
+        mIP.position(headers);
+        for (int i = 0; i < n; i++) {
+            mIP.put((byte) i);
+        }
+        mIP.position(IPUtils.IPHeader.DEFAULT_LENGTH);
+        IPUtils.TCPHeader.fill(mIP, APP_ADDR, appPort, 0x7f000001, port, seq, ack, flags, 0xffff, n);
+        mIP.position(0);
+        IPUtils.IPHeader.fill(mIP, APP_ADDR, 0x7f000001, IPUtils.PROTO_TCP, IPUtils.TCPHeader.DEFAULT_LENGTH + n);
+        mIP.position(0);
+        mIP.limit(headers + n);
+        sm.processIPOut(mIP);
+    }
+
+    // Sends the first datagram of app flow to the peer, returns the address of the upstream socket
+    private SocketAddress openUDPFlow(SocketManager sm) throws IOException {
+        int port = ((InetSocketAddress) mPeer.getLocalAddress()).getPort();
+        int n = 16;
+        mIP.clear();
+        mIP.position(IPUtils.IPHeader.DEFAULT_LENGTH);
+        IPUtils.UDPHeader.fill(mIP, APP_PORT, port, n);
+        mIP.put(new byte[n]);
+        mIP.position(0);
+        IPUtils.IPHeader.fill(mIP, APP_ADDR, 0x7f000001, IPUtils.PROTO_UDP, IPUtils.UDPHeader.DEFAULT_LENGTH + n);
+        mIP.position(0);
+        mIP.limit(IPUtils.IPHeader.DEFAULT_LENGTH + IPUtils.UDPHeader.DEFAULT_LENGTH + n);
+        sm.processIPOut(mIP);
+        return mPeer.receive(ByteBuffer.allocate(n));
+    }
+
+    private static class TestTunnel implements SocketManager.Tunnel {
+        int mPackets;
+        long mBytes;
+        FileChannel mOut;
+        // Sequence number and flags of the last TCP segment
+        int mLastSeq;
+        int mLastFlags;
+
+        @Override
+        public void protect(Socket socket) {
+        }
+
+        @Override
+        public void protect(DatagramSocket socket) {
+        }
+
+        @Override
+        public void write(ByteBuffer ip) {
+            mPackets++;
+            mBytes += ip.remaining();
+            int tcp = ip.position() + IPUtils.IPHeader.DEFAULT_LENGTH;
+            if (ip.get(ip.position() + 9) == IPUtils.PROTO_TCP) {
+                mLastSeq = ip.getInt(tcp + 4);
+                mLastFlags = ip.get(tcp + 13) & 0xff;
+            }
+            if (mOut != null) {
+                try {
+                    mOut.write(ip);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            ip.position(ip.limit());
+        }
+
+        @Override
+        public void write(ByteBuffer[] batch, int count) {
+            for (int i = 0; i < count; i++) {
+                write(batch[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package trikita.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TCBPoolTest {
+
+    private final MemoryBudget mBudget = new MemoryBudget(1024 * 1024);
+
+    @Test
+    public void reusesReleasedTCBs() {
+        TCBPool pool = new TCBPool(4, mBudget);
+        TCB tcb = pool.acquire(id(1), null, 1, 2, 3, 4);
+        long used = mBudget.getUsed();
+        tcb.setUid(10123);
+        tcb.setRecord(7);
+        pool.release(tcb);
+        assertEquals(TCB.CLOSED, tcb.getStatus());
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(used, mBudget.getUsed());
+
+        TCB reused = pool.acquire(id(2), null, 5, 6, 7, 8);
+        assertSame(tcb, reused);
+        assertEquals(id(2), reused.getID());
+        assertEquals(TCB.SYN_SENT, reused.getStatus());
+        assertEquals(5, reused.getLocalSeq());
+        assertEquals(UIDResolver.UID_UNKNOWN, reused.getUid());
+        assertEquals(-1, reused.getRecord());
+        assertEquals(1, pool.getCreated());
+        assertEquals(1, pool.getReused());
+        assertEquals(0, pool.getPooledCount());
+    }
+
+    @Test
+    public void releasesBudgetBeyondPoolSize() {
+        TCBPool pool = new TCBPool(1, mBudget);
+        TCB a = pool.acquire(id(1), null, 0, 0, 0, 0);
+        long one = mBudget.getUsed();
+        TCB b = pool.acquire(id(2), null, 0, 0, 0, 0);
+        assertEquals(2 * one, mBudget.getUsed());
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(one, mBudget.getUsed());
+        // Released twice, ignored
+        pool.release(b);
+        assertEquals(one, mBudget.getUsed());
+    }
+
+    @Test
+    public void refusesConnectionsWhenBudgetIsExhausted() {
+        TCBPool pool = new TCBPool(4, mBudget);
+        int count = 0;
+        TCB last = null;
+        TCB tcb;
+        while ((tcb = pool.acquire(id(count), null, 0, 0, 0, 0)) != null) {
+            last = tcb;
+            count++;
+        }
+        assertNotNull(last);
+        assertEquals(1, mBudget.getRejected());
+        assertEquals(count, pool.getCreated());
+        assertNull(pool.acquire(id(count), null, 0, 0, 0, 0));
+
+        // A released TCB is pooled only at LEVEL_NORMAL, so it frees budget for the next one
+        pool.release(last);
+        assertEquals(0, pool.getPooledCount());
+        assertNotNull(pool.acquire(id(count), null, 0, 0, 0, 0));
+    }
+
+    private static IPUtils.SocketID id(int i) {
+        return new IPUtils.SocketID().set(0x0a000002, 40000 + i, 0x08080808, 443);
+    }
+}
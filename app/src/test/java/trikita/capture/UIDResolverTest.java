@@ -0,0 +1,134 @@
+package trikita.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+// Resolves real loopback sockets through the /proc/net tables of the host, skipped where there are none
+public class UIDResolverTest {
+
+    private static final int LOOPBACK = 0x7f000001;
+
+    private ServerSocket mServer;
+    private int mUid;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(new File("/proc/net/tcp").exists());
+        mUid = ownUid();
+        mServer = new ServerSocket();
+        mServer.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void resolvesConnectedTCPSocket() throws IOException {
+        Socket client = connect();
+        try {
+            UIDResolver resolver = new UIDResolver();
+            assertEquals(mUid, resolver.resolve(IPUtils.PROTO_TCP, flow(client), 1000));
+            assertEquals(1, resolver.getScans());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void resolvesUnconnectedUDPSocket() throws IOException {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        try {
+            UIDResolver resolver = new UIDResolver();
+            UDPFlow flow = new UDPFlow(new IPUtils.SocketID().set(LOOPBACK, socket.getLocalPort(), 0x08080808, 53), null);
+            assertEquals(mUid, resolver.resolve(IPUtils.PROTO_UDP, flow, 1000));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void resolvesBurstMissesInOneLaterScan() throws IOException {
+        UIDResolver resolver = new UIDResolver();
+        FlowTable table = new FlowTable(16);
+        Socket first = connect();
+        Socket[] burst = new Socket[8];
+        UDPFlow[] flows = new UDPFlow[burst.length];
+        try {
+            assertEquals(mUid, resolver.resolve(IPUtils.PROTO_TCP, flow(first), 1000));
+            for (int i = 0; i < burst.length; i++) {
+                burst[i] = connect();
+                flows[i] = flow(burst[i]);
+                // Within the rescan interval, the flows are queued instead of scanning again
+                assertEquals(UIDResolver.UID_UNKNOWN, resolver.resolve(IPUtils.PROTO_TCP, flows[i], 1010 + i));
+                flows[i].setRecord(table.open(flows[i], IPUtils.PROTO_TCP, 1010 + i));
+            }
+            assertEquals(1, resolver.getScans());
+
+            resolver.resolvePending(1100, table);
+            assertEquals(1, resolver.getScans());
+            assertEquals(UIDResolver.UID_UNKNOWN, flows[0].getUid());
+
+            resolver.resolvePending(1300, table);
+            assertEquals(2, resolver.getScans());
+            assertFalse(resolver.hasPending());
+            for (UDPFlow flow : flows) {
+                assertEquals(mUid, flow.getUid());
+                assertEquals(mUid, table.getUid(flow.getRecord()));
+            }
+            assertEquals(burst.length, resolver.getLate());
+        } finally {
+            first.close();
+            for (Socket s : burst) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket();
+        client.connect(mServer.getLocalSocketAddress());
+        return client;
+    }
+
+    // App side is the client socket, as for flows coming out of the VPN
+    private UDPFlow flow(Socket client) {
+        return new UDPFlow(new IPUtils.SocketID().set(LOOPBACK, client.getLocalPort(), LOOPBACK,
+                mServer.getLocalPort()), null);
+    }
+
+    private static int ownUid() throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("Uid:")) {
+                    return Integer.parseInt(line.substring(4).trim().split("\\s+")[0]);
+                }
+            }
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+}